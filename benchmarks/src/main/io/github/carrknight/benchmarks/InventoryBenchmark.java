@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.benchmarks;
+
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Inventory;
+import io.github.carrknight.zeroknowledge.InventoryStore;
+import io.github.carrknight.zeroknowledge.Owner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing one good across the whole population, with one Inventory object per agent and with the
+ * columnar store. Scores are in whole-population passes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int agents;
+
+    private Owner[] inventories;
+
+    private Owner[] rows;
+
+    private InventoryStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        inventories = new Owner[agents];
+        store = InventoryStore.onHeap(agents);
+        rows = new Owner[agents];
+        for(int i=0; i<agents; i++) {
+            inventories[i] = new Inventory();
+            rows[i] = store.getInventory(store.addInventory());
+        }
+    }
+
+    @Benchmark
+    public void writeInventories() {
+        for (Owner inventory : inventories)
+            inventory.receiveOrProduce(GoodType.CASH, 1);
+    }
+
+    @Benchmark
+    public double readInventories() {
+        double sum = 0;
+        for (Owner inventory : inventories)
+            sum += inventory.hasHowMany(GoodType.CASH);
+        return sum;
+    }
+
+    @Benchmark
+    public void writeStoreRows() {
+        for (Owner row : rows)
+            row.receiveOrProduce(GoodType.CASH, 1);
+    }
+
+    @Benchmark
+    public double readStoreColumn() {
+        return store.sum(GoodType.CASH);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.benchmarks;
+
+import io.github.carrknight.schedule.DAY_PHASES;
+import io.github.carrknight.schedule.Effect;
+import io.github.carrknight.schedule.InventoryOp;
+import io.github.carrknight.schedule.ScheduleServer;
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Inventory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inventory changes registered as one anonymous Effect each against the same changes registered as encoded
+ * inventory operations. Throughput is in phases per second; run with -prof gc to compare the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InventoryEffectBenchmark {
+
+    @Param({"100000"})
+    public int agents;
+
+    @Param({"8"})
+    public int changesPerAgent;
+
+    @Param({"false", "true"})
+    public boolean encoded;
+
+    private ScheduleServer schedule;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        schedule = new ScheduleServer(parallelism);
+        final int[] ids = new int[agents];
+        final Inventory[] inventories = new Inventory[agents];
+        for(int i=0; i<agents; i++) {
+            inventories[i] = new Inventory();
+            ids[i] = schedule.registerAgent(new ScheduleBenchmark.IdleAgent(), inventories[i]);
+        }
+
+        for(int thread=0; thread<parallelism; thread++) {
+            final int from = thread * agents / parallelism;
+            final int to = (thread + 1) * agents / parallelism;
+            schedule.registerRecurringAction(DAY_PHASES.PRODUCTION, () -> {
+                for (int i = from; i < to; i++)
+                    for (int j = 0; j < changesPerAgent; j++) {
+                        if(encoded)
+                            schedule.registerInventoryEffect(ids[i], InventoryOp.RECEIVE_OR_PRODUCE,
+                                    GoodType.OUTPUT, 1, 0);
+                        else {
+                            final Inventory inventory = inventories[i];
+                            schedule.registerEffect(new Effect(0) {
+                                @Override
+                                public void run() {
+                                    inventory.receiveOrProduce(GoodType.OUTPUT, 1);
+                                }
+                            }, ids[i]);
+                        }
+                    }
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        schedule.close();
+    }
+
+    @Benchmark
+    public void produce() throws InterruptedException {
+        schedule.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.benchmarks;
+
+import io.github.carrknight.schedule.DAY_PHASES;
+import io.github.carrknight.schedule.Effect;
+import io.github.carrknight.schedule.ScheduleServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How fast many threads can register effects. Each pool thread runs one action registering its share of the
+ * effects, which do nothing, so the score is dominated by registering and merging at the barrier. Throughput is in
+ * phases per second; multiply by agents * effectsPerAgent to get registrations per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationBenchmark {
+
+    @Param({"1000", "100000"})
+    public int agents;
+
+    @Param({"1", "8"})
+    public int effectsPerAgent;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private ScheduleServer schedule;
+
+    private static final Effect NOTHING = new Effect(0) {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        schedule = new ScheduleServer(parallelism);
+        final int[] ids = new int[agents];
+        for(int i=0; i<agents; i++)
+            ids[i] = schedule.registerAgent(new ScheduleBenchmark.IdleAgent());
+
+        //one action per thread, each registering for a slice of the agents
+        for(int thread=0; thread<parallelism; thread++) {
+            final int from = thread * agents / parallelism;
+            final int to = (thread + 1) * agents / parallelism;
+            schedule.registerRecurringAction(DAY_PHASES.PRODUCTION, () -> {
+                for (int i = from; i < to; i++)
+                    for (int j = 0; j < effectsPerAgent; j++)
+                        schedule.registerEffect(NOTHING, ids[i]);
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        schedule.close();
+    }
+
+    @Benchmark
+    public void registerFromManyThreads() throws InterruptedException {
+        schedule.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+    }
+}
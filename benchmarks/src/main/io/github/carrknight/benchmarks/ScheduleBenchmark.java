@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.benchmarks;
+
+import io.github.carrknight.schedule.Agent;
+import io.github.carrknight.schedule.DAY_PHASES;
+import io.github.carrknight.schedule.Effect;
+import io.github.carrknight.schedule.Schedule;
+import io.github.carrknight.schedule.ScheduleServer;
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Inventory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Days per second of a model where every agent, during production, registers a few effects on its own inventory.
+ * Throughput is in days (or phases) per second, so a regression shows up as a lower score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScheduleBenchmark {
+
+    @Param({"1000", "100000"})
+    public int agents;
+
+    @Param({"1", "8"})
+    public int effectsPerAgent;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private ScheduleServer schedule;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        schedule = new ScheduleServer(parallelism);
+        for(int i=0; i<agents; i++) {
+            final Inventory inventory = new Inventory();
+            final int id = schedule.registerAgent(new IdleAgent());
+            schedule.registerRecurringAction(DAY_PHASES.PRODUCTION, () -> {
+                for (int j = 0; j < effectsPerAgent; j++)
+                    schedule.registerEffect(new Effect(j) {
+                        @Override
+                        public void run() {
+                            inventory.receiveOrProduce(GoodType.OUTPUT, 1);
+                        }
+                    }, id);
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        schedule.close();
+    }
+
+    @Benchmark
+    public int completeADay() {
+        schedule.completeADay();
+        return schedule.getDay();
+    }
+
+    /**
+     * ten days per operation, to compare against completeADay
+     */
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public int completeDays() {
+        schedule.completeDays(10);
+        return schedule.getDay();
+    }
+
+    @Benchmark
+    public void completeAnArbitraryPhase() throws InterruptedException {
+        schedule.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+    }
+
+    /**
+     * does nothing: all the benchmarks care about are the actions and effects
+     */
+    static class IdleAgent implements Agent {
+
+        @Override
+        public void start(Schedule schedule) {
+        }
+
+        @Override
+        public void turnOff() {
+        }
+    }
+}
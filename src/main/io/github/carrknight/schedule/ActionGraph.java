@@ -0,0 +1,218 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import com.google.common.base.Throwables;
+
+import java.util.*;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The actions of a phase run as a dependency graph: each action is forked as soon as all the actions it depends on
+ * are done, without waiting for the rest of the phase. The graph is built once (and again only when actions are
+ * added) and its nodes are reused every day. <br>
+ * If an action fails, the actions depending on it (directly or not) are skipped; all the others still run and the
+ * first failure is rethrown once the whole graph is done.
+ */
+final class ActionGraph extends CountedCompleter<Void> {
+
+    private static final long serialVersionUID = 1L;
+
+    private Node[] nodes;
+
+    /**
+     * the nodes with no dependency, started right away
+     */
+    private Node[] roots;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private ActionGraph() {
+    }
+
+    /**
+     * link the actions into a graph
+     * @param actions the actions of the phase
+     * @param dependencies for each action its group and what it waits for; null for actions with neither
+     * @param size how many actions there are
+     * @throws IllegalStateException if an action waits for an action that isn't in the phase, if an action is in the
+     * phase twice, or if the dependencies go in a circle
+     */
+    static ActionGraph build(RecurringAction[] actions, PhaseActions.Dependencies[] dependencies, int size){
+        ActionGraph graph = new ActionGraph();
+
+        //who is in each group, and where is each action
+        Map<String,List<Integer>> groups = new HashMap<>();
+        Map<RecurringAction,Integer> positions = new IdentityHashMap<>();
+        for(int i=0; i<size; i++) {
+            //waiting for an action registered twice would be ambiguous
+            if(positions.putIfAbsent(actions[i], i) != null)
+                throw new IllegalStateException("an action is registered twice in the same phase");
+            if(dependencies[i] != null && dependencies[i].group != null)
+                groups.computeIfAbsent(dependencies[i].group, g -> new ArrayList<>()).add(i);
+        }
+
+        //for each action, the actions waiting for it
+        List<List<Integer>> successors = new ArrayList<>(size);
+        for(int i=0; i<size; i++)
+            successors.add(new ArrayList<>());
+        int[] prerequisites = new int[size];
+        for(int i=0; i<size; i++) {
+            if(dependencies[i] == null)
+                continue;
+            //a set, so that waiting for the same action twice counts once
+            Set<Integer> before = new LinkedHashSet<>();
+            for(String group : dependencies[i].afterGroups)
+                before.addAll(groups.getOrDefault(group, Collections.emptyList()));
+            for(RecurringAction action : dependencies[i].afterActions) {
+                Integer position = positions.get(action);
+                if(position == null)
+                    throw new IllegalStateException("an action waits for an action that isn't part of its phase");
+                before.add(position);
+            }
+            for(int prerequisite : before)
+                successors.get(prerequisite).add(i);
+            prerequisites[i] = before.size();
+        }
+
+        //every node must be reachable going forward from the roots, or there is a circle
+        int[] remaining = prerequisites.clone();
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for(int i=0; i<size; i++)
+            if(remaining[i] == 0)
+                queue[tail++] = i;
+        int rootCount = tail;
+        while(head < tail)
+            for(int successor : successors.get(queue[head++]))
+                if(--remaining[successor] == 0)
+                    queue[tail++] = successor;
+        if(tail < size)
+            throw new IllegalStateException("the dependencies between actions of a phase go in a circle");
+
+        graph.nodes = new Node[size];
+        for(int i=0; i<size; i++)
+            graph.nodes[i] = new Node(graph, actions[i], prerequisites[i]);
+        for(int i=0; i<size; i++) {
+            List<Integer> after = successors.get(i);
+            Node[] linked = new Node[after.size()];
+            for(int j=0; j<linked.length; j++)
+                linked[j] = graph.nodes[after.get(j)];
+            graph.nodes[i].successors = linked;
+        }
+        graph.roots = new Node[rootCount];
+        for(int i=0; i<rootCount; i++)
+            graph.roots[i] = graph.nodes[queue[i]];
+        return graph;
+    }
+
+    @Override
+    public void compute() {
+        failure.set(null);
+        for(Node node : nodes)
+            node.reset();
+        //each node completing counts down once; the last one completes the graph
+        setPendingCount(nodes.length - 1);
+        for(Node root : roots)
+            root.fork();
+    }
+
+    /**
+     * run the whole graph and wait for it, rethrowing the first failure if any. Call from within the pool
+     */
+    void runAndRethrow(){
+        reinitialize();
+        invoke();
+        Throwable failed = failure.get();
+        if(failed != null)
+            throw Throwables.propagate(failed);
+    }
+
+    /**
+     * one action and the links to the actions waiting for it
+     */
+    private static final class Node extends CountedCompleter<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ActionGraph graph;
+
+        private final RecurringAction action;
+
+        private Node[] successors;
+
+        /**
+         * how many actions this waits for
+         */
+        private final int prerequisites;
+
+        /**
+         * how many of those are not done yet; the one bringing it to 0 forks this node
+         */
+        private final AtomicInteger remaining = new AtomicInteger();
+
+        /**
+         * true when something this waits for failed. Written before counting down, so whoever forks the node sees it
+         */
+        private volatile boolean skip;
+
+        private Node(ActionGraph graph, RecurringAction action, int prerequisites) {
+            super(graph);
+            this.graph = graph;
+            this.action = action;
+            this.prerequisites = prerequisites;
+        }
+
+        private void reset(){
+            reinitialize();
+            remaining.set(prerequisites);
+            skip = false;
+        }
+
+        @Override
+        public void compute() {
+            boolean failed = skip;
+            if(!failed) {
+                try {
+                    action.act();
+                }
+                catch (Throwable t) {
+                    graph.failure.compareAndSet(null, t);
+                    failed = true;
+                }
+            }
+            for(Node successor : successors) {
+                if(failed)
+                    successor.skip = true;
+                if(successor.remaining.decrementAndGet() == 0)
+                    successor.fork();
+            }
+            tryComplete();
+        }
+    }
+}
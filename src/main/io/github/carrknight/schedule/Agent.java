@@ -11,14 +11,15 @@ public interface Agent {
 
 
     /**
-     * called by the schedule to initialize the agent just before the model formally starts
+     * called by the schedule to initialize the agent just before the model formally starts (or, for agents registered
+     * later, just before the first phase after their registration). Agents are started in parallel
      * @param schedule the schedule
      */
     public void start(Schedule schedule);
 
 
     /**
-     * called by the schedule to turn off the agent
+     * called by the schedule to turn off the agent, when the schedule is closed. Agents are turned off in parallel
      */
     public void turnOff();
 
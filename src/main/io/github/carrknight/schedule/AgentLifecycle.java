@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Starts or turns off a range of agents in parallel, splitting the range in halves down to a small grain
+ */
+final class AgentLifecycle extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int GRAIN = 64;
+
+    private final Agent[] agents;
+
+    private final int from;
+
+    private final int to;
+
+    /**
+     * the schedule to start the agents with; null means the agents are to be turned off
+     */
+    private final Schedule schedule;
+
+    private AgentLifecycle(Agent[] agents, int from, int to, Schedule schedule) {
+        this.agents = agents;
+        this.from = from;
+        this.to = to;
+        this.schedule = schedule;
+    }
+
+    /**
+     * calls start(schedule) on agents[from,to), skipping empty slots
+     */
+    public static AgentLifecycle start(Agent[] agents, int from, int to, Schedule schedule){
+        return new AgentLifecycle(agents, from, to, schedule);
+    }
+
+    /**
+     * calls turnOff() on agents[from,to), skipping empty slots
+     */
+    public static AgentLifecycle turnOff(Agent[] agents, int from, int to){
+        return new AgentLifecycle(agents, from, to, null);
+    }
+
+    @Override
+    protected void compute() {
+        if(to - from <= GRAIN) {
+            for(int i=from; i<to; i++) {
+                Agent agent = agents[i];
+                if(agent == null)
+                    continue;
+                if(schedule != null)
+                    agent.start(schedule);
+                else
+                    agent.turnOff();
+            }
+        }
+        else {
+            int middle = (from + to) >>> 1;
+            invokeAll(new AgentLifecycle(agents, from, middle, schedule),
+                      new AgentLifecycle(agents, middle, to, schedule));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.ConcurrentInventory;
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the statistics of one good over a range of the inventory registry as a fork/join reduction: the range is
+ * split in halves down to a grain, each leaf accumulates on its own and the halves are merged on the way back up
+ * (variances with the pairwise formula of Chan et al., so nothing is lost by splitting). Ids without inventory are
+ * skipped.
+ */
+final class AggregateInventories extends RecursiveTask<AggregateInventories.Partial> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int GRAIN = 4096;
+
+    private final Owner[] inventories;
+
+    private final GoodType good;
+
+    private final float lowest;
+
+    private final float highest;
+
+    private final int bins;
+
+    private final int from;
+
+    private final int to;
+
+    /**
+     * @param bins how many histogram bins between lowest and highest; 0 for no histogram
+     */
+    AggregateInventories(Owner[] inventories, GoodType good, float lowest, float highest, int bins, int from, int to) {
+        this.inventories = inventories;
+        this.good = good;
+        this.lowest = lowest;
+        this.highest = highest;
+        this.bins = bins;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * what the inventory holds right now, ignoring the snapshot of concurrent inventories
+     */
+    static float currentAmount(Owner inventory, GoodType good){
+        if(inventory instanceof ConcurrentInventory)
+            return ((ConcurrentInventory) inventory).current(good);
+        return inventory.hasHowMany(good);
+    }
+
+    @Override
+    protected Partial compute() {
+        if(to - from > GRAIN) {
+            int middle = (from + to) >>> 1;
+            AggregateInventories right =
+                    new AggregateInventories(inventories, good, lowest, highest, bins, middle, to);
+            right.fork();
+            Partial left = new AggregateInventories(inventories, good, lowest, highest, bins, from, middle).compute();
+            left.merge(right.join());
+            return left;
+        }
+
+        Partial partial = new Partial(bins);
+        double width = bins == 0 ? 0 : ((double) highest - lowest) / bins;
+        for(int i=from; i<to; i++) {
+            Owner inventory = inventories[i];
+            if(inventory == null)
+                continue;
+            double amount = currentAmount(inventory, good);
+            //Welford's update
+            partial.count++;
+            double delta = amount - partial.mean;
+            partial.mean += delta / partial.count;
+            partial.squares += delta * (amount - partial.mean);
+            partial.sum += amount;
+            partial.min = Math.min(partial.min, amount);
+            partial.max = Math.max(partial.max, amount);
+            if(bins > 0) {
+                int bin = (int) ((amount - lowest) / width);
+                partial.histogram[Math.max(0, Math.min(bins - 1, bin))]++;
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * the statistics of part of the range
+     */
+    static final class Partial {
+
+        long count = 0;
+
+        double sum = 0;
+
+        double mean = 0;
+
+        /**
+         * sum of the squared distances from the mean
+         */
+        double squares = 0;
+
+        double min = Double.POSITIVE_INFINITY;
+
+        double max = Double.NEGATIVE_INFINITY;
+
+        final long[] histogram;
+
+        private Partial(int bins) {
+            histogram = new long[bins];
+        }
+
+        private void merge(Partial other){
+            if(other.count == 0)
+                return;
+            long total = count + other.count;
+            double delta = other.mean - mean;
+            squares += other.squares + delta * delta * count * other.count / total;
+            mean += delta * other.count / total;
+            count = total;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            for(int i=0; i<histogram.length; i++)
+                histogram[i] += other.histogram[i];
+        }
+
+        InventoryAggregates toAggregates(GoodType good, float lowest, float highest){
+            boolean empty = count == 0;
+            return new InventoryAggregates(good, count, sum, empty ? Double.NaN : mean,
+                    empty ? Double.NaN : squares / count, empty ? Double.NaN : min, empty ? Double.NaN : max,
+                    lowest, highest, histogram);
+        }
+    }
+}
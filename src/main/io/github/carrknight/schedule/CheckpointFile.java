@@ -0,0 +1,195 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.GoodType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The content of a checkpoint: the day and what every agent owned at the end of it. <br>
+ * On disk it's a small header (magic, version, day, agents, goods), one byte per agent telling whether it has an
+ * inventory (padded to 4 bytes) and then one column of floats per good with a row per agent. Files are written
+ * sequentially, through a small buffer, into a temporary file that is forced to disk and then moved over the old
+ * checkpoint, so a crash while writing leaves the previous checkpoint intact; they are read back with one sequential
+ * pass. Nothing stays mapped, so the file can be replaced right away on any platform. Numbers are big endian
+ * whatever the machine, so checkpoints can be moved around.
+ */
+public final class CheckpointFile {
+
+    private static final int MAGIC = 0x5A4B4350;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 5 * 4;
+
+    /**
+     * how much is written at a time
+     */
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    private static final GoodType[] GOODS = GoodType.values();
+
+    private final int day;
+
+    private final int agents;
+
+    private final byte[] present;
+
+    /**
+     * one column per good, one row per agent
+     */
+    private final float[][] columns;
+
+    private CheckpointFile(int day, int agents, byte[] present, float[][] columns) {
+        this.day = day;
+        this.agents = agents;
+        this.present = present;
+        this.columns = columns;
+    }
+
+    /**
+     * read a whole checkpoint in memory
+     * @throws IOException if the file can't be read or isn't a checkpoint
+     */
+    public static CheckpointFile read(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_BYTES)
+                throw new IOException(file + " is not a checkpoint");
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES);
+            while(buffer.hasRemaining())
+                if(channel.read(buffer) < 0)
+                    throw new IOException(file + " is not a checkpoint");
+            buffer.flip();
+            if(buffer.getInt() != MAGIC)
+                throw new IOException(file + " is not a checkpoint");
+            int version = buffer.getInt();
+            if(version != VERSION)
+                throw new IOException("unknown checkpoint version " + version);
+            int day = buffer.getInt();
+            int agents = buffer.getInt();
+            int goods = buffer.getInt();
+            if(goods != GOODS.length)
+                throw new IOException("checkpoint has " + goods + " goods, expected " + GOODS.length);
+            if(channel.size() != size(agents))
+                throw new IOException(file + " is truncated");
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to read");
+
+            buffer = ByteBuffer.allocate((int) channel.size());
+            channel.position(0);
+            while(buffer.hasRemaining())
+                if(channel.read(buffer) < 0)
+                    throw new IOException(file + " is truncated");
+            buffer.flip();
+            buffer.position(HEADER_BYTES);
+            byte[] present = new byte[agents];
+            buffer.get(present);
+            buffer.position(HEADER_BYTES + padded(agents));
+            float[][] columns = new float[goods][agents];
+            for(float[] column : columns) {
+                buffer.asFloatBuffer().get(column);
+                buffer.position(buffer.position() + agents * 4);
+            }
+            return new CheckpointFile(day, agents, present, columns);
+        }
+    }
+
+    /**
+     * write a checkpoint, replacing the old one only once the new one is completely on disk
+     * @param agents how many agents (rows) to write
+     * @param present for each agent, 1 if it has an inventory
+     * @param columns for each good, what each agent owns
+     */
+    static void write(Path file, int day, int agents, byte[] present, float[][] columns) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(day).putInt(agents).putInt(columns.length);
+            for(int i=0; i<padded(agents); i++) {
+                if(!buffer.hasRemaining())
+                    drain(channel, buffer);
+                buffer.put(i < agents ? present[i] : 0);
+            }
+            for(float[] column : columns)
+                for(int i=0; i<agents; i++) {
+                    if(buffer.remaining() < 4)
+                        drain(channel, buffer);
+                    buffer.putFloat(column[i]);
+                }
+            drain(channel, buffer);
+            //all of it on disk before it replaces the old checkpoint
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static long size(int agents){
+        return HEADER_BYTES + padded(agents) + (long) GOODS.length * agents * 4;
+    }
+
+    private static int padded(int bytes){
+        return (bytes + 3) & ~3;
+    }
+
+    /**
+     * the day the checkpoint was taken at (that many days had passed)
+     */
+    public int getDay() {
+        return day;
+    }
+
+    /**
+     * how many agents were registered
+     */
+    public int getAgents() {
+        return agents;
+    }
+
+    public boolean hasInventory(int agent){
+        return present[agent] != 0;
+    }
+
+    /**
+     * how much of the good the agent owned
+     */
+    public float get(int agent, GoodType type){
+        return columns[type.ordinal()][agent];
+    }
+}
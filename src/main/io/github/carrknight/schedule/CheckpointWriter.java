@@ -0,0 +1,196 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.ConcurrentInventory;
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Takes checkpoints of a schedule in two steps: the dispatch thread copies every inventory in memory, in parallel on
+ * the pool, and a background thread of its own writes the copy to disk while the schedule moves on. <br>
+ * There are two copies, used in turn, so one can be filled while the other is written; the schedule waits only when
+ * it's time to fill a copy still being written, which means the disk is a whole checkpoint behind.
+ */
+final class CheckpointWriter implements AutoCloseable {
+
+    private static final GoodType[] GOODS = GoodType.values();
+
+    private final Path file;
+
+    /**
+     * days between automatic checkpoints; 0 for none
+     */
+    private final int interval;
+
+    private final ExecutorService io;
+
+    private final Capture[] captures = {new Capture(), new Capture()};
+
+    private int next = 0;
+
+    CheckpointWriter(Path file, int interval) {
+        this.file = file;
+        this.interval = interval;
+        io = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    boolean isDue(int day){
+        return interval > 0 && day % interval == 0;
+    }
+
+    /**
+     * the copy to fill next, once it's done being written. A failure writing it last time is not rethrown here: it
+     * was reported by the future of that write
+     */
+    Capture nextCapture(int agents){
+        Capture capture = captures[next];
+        next = 1 - next;
+        capture.awaitWritten();
+        capture.prepare(agents);
+        return capture;
+    }
+
+    /**
+     * start writing a filled copy in the background
+     * @return a future completed once the copy is on disk, or exceptionally (naming the day) if it couldn't be written
+     */
+    CompletableFuture<Void> write(Capture capture, int day){
+        CompletableFuture<Void> written = CompletableFuture.runAsync(() -> {
+            try {
+                CheckpointFile.write(file, day, capture.agents, capture.present, capture.columns);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("couldn't write the checkpoint of day " + day, e);
+            }
+        }, io);
+        capture.writing = written;
+        return written;
+    }
+
+    /**
+     * wait for the copies being written, then stop the writing thread
+     */
+    @Override
+    public void close() {
+        try {
+            for(Capture capture : captures)
+                capture.awaitWritten();
+        }
+        finally {
+            io.shutdown();
+        }
+    }
+
+    /**
+     * what every agent owns, as columns
+     */
+    static final class Capture {
+
+        private int agents;
+
+        private byte[] present = new byte[0];
+
+        private float[][] columns = new float[GOODS.length][0];
+
+        private CompletableFuture<Void> writing;
+
+        private void prepare(int agents){
+            this.agents = agents;
+            if(present.length < agents) {
+                int capacity = Math.max(agents, present.length * 2);
+                present = new byte[capacity];
+                for(int i=0; i<columns.length; i++)
+                    columns[i] = new float[capacity];
+            }
+        }
+
+        private void awaitWritten(){
+            CompletableFuture<Void> previous = writing;
+            writing = null;
+            if(previous != null)
+                previous.handle((done, failure) -> null).join();
+        }
+
+        /**
+         * the task copying the inventories of the agents in; run it while no phase is running
+         */
+        RecursiveAction fill(Owner[] inventories){
+            return new Fill(inventories, 0, agents);
+        }
+
+        private final class Fill extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            private static final int GRAIN = 4096;
+
+            private final Owner[] inventories;
+
+            private final int from;
+
+            private final int to;
+
+            private Fill(Owner[] inventories, int from, int to) {
+                this.inventories = inventories;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if(to - from > GRAIN) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new Fill(inventories, from, middle), new Fill(inventories, middle, to));
+                    return;
+                }
+                for(int agent=from; agent<to; agent++) {
+                    Owner inventory = agent < inventories.length ? inventories[agent] : null;
+                    present[agent] = (byte) (inventory == null ? 0 : 1);
+                    for(int good=0; good<GOODS.length; good++) {
+                        float owned = 0;
+                        if(inventory instanceof ConcurrentInventory)
+                            owned = ((ConcurrentInventory) inventory).current(GOODS[good]);
+                        else if(inventory != null)
+                            owned = inventory.hasHowMany(GOODS[good]);
+                        columns[good][agent] = owned;
+                    }
+                }
+            }
+        }
+    }
+}
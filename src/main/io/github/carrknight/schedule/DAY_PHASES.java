@@ -1,18 +1,36 @@
 package io.github.carrknight.schedule;
 
 /**
- * These are the phases in which a day is split
+ * These are the phases in which a day is split, unless the schedule is given a different list
  * Created by carrknight on 7/28/14.
  */
-public enum DAY_PHASES {
+public enum DAY_PHASES implements Phase {
 
     PRODUCTION,
 
     PLACE_ORDERS,
 
-    TRADE,
+    /**
+     * agents meet here, so in pipelined mode everybody waits for everybody before and after
+     */
+    TRADE(true),
 
     POST_TRADE,
 
-    DATA_AND_OUTPUT
+    DATA_AND_OUTPUT;
+
+    private final boolean synchronizing;
+
+    DAY_PHASES() {
+        this(false);
+    }
+
+    DAY_PHASES(boolean synchronizing) {
+        this.synchronizing = synchronizing;
+    }
+
+    @Override
+    public boolean isSynchronizing() {
+        return synchronizing;
+    }
 }
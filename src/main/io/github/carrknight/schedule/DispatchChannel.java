@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A channel of commands executed one at a time, in order, by whatever thread of the executor picks them up. <br>
+ * This is the dispatch "thread" of the schedule without owning a thread: when a command arrives and nobody is serving
+ * the channel, a task is sent to the executor that keeps running commands until the channel is empty. Idle schedules
+ * cost nothing and thousands of them can share the same pool. <br>
+ * Commands must not throw.
+ */
+final class DispatchChannel {
+
+    private final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+
+    /**
+     * commands sent but not finished yet. Whoever moves it away from 0 has to start serving
+     */
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    private final Executor executor;
+
+    /**
+     * the thread running a command right now, if any
+     */
+    private volatile Thread serving = null;
+
+    public DispatchChannel(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void offer(Runnable command){
+        commands.offer(command);
+        if(pending.getAndIncrement() == 0)
+            executor.execute(this::serve);
+    }
+
+    private void serve(){
+        do {
+            serving = Thread.currentThread();
+            commands.poll().run();
+            //stop being the dispatch thread before giving somebody else the chance to become it
+            serving = null;
+        }
+        while(pending.decrementAndGet() != 0);
+    }
+
+    /**
+     * true if the calling thread is in the middle of running a command
+     */
+    public boolean isServing(){
+        return serving == Thread.currentThread();
+    }
+
+    /**
+     * how many commands are waiting, not counting the one running
+     */
+    public int backlog(){
+        return Math.max(0, pending.get() - 1);
+    }
+}
@@ -18,6 +18,10 @@ public abstract class Effect implements Runnable,Comparable<Effect>{
     }
 
 
+    public int getPriority() {
+        return priority;
+    }
+
     @Override
     public int compareTo(Effect o) {
         return Integer.compare(this.priority,o.priority);
@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.util.Arrays;
+
+/**
+ * The effects a single agent has to resolve at the next barrier. Reused phase after phase: clearing keeps the array.
+ * <br> Encoded inventory operations sit in the same list as the effect objects (with a null effect) and are stored as
+ * an int code and a float amount, so they are sorted together with the others and allocate nothing.
+ */
+final class EffectBucket {
+
+    private static final GoodType[] GOODS = GoodType.values();
+
+    private Effect[] effects = new Effect[4];
+
+    /**
+     * the priority of each effect, kept apart so sorting never has to go through the effect objects
+     */
+    private int[] priorities = new int[4];
+
+    /**
+     * for encoded operations: what to do and to which good (see InventoryOp.encode) and how much
+     */
+    private int[] codes = new int[4];
+
+    private float[] amounts = new float[4];
+
+    private int size = 0;
+
+    private int encoded = 0;
+
+    /**
+     * for each good, 1 + the index of the last encoded delta on it (0 if none), to coalesce the next ones
+     */
+    private final int[] lastDelta = new int[GoodType.values().length];
+
+    /**
+     * the agent's inventory, needed only to run encoded operations
+     */
+    private Owner inventory;
+
+    public void add(Effect effect){
+        if(size == effects.length)
+            grow();
+        effects[size] = effect;
+        priorities[size] = effect.getPriority();
+        size++;
+    }
+
+    /**
+     * add an encoded inventory operation
+     * @param inventory the inventory of the agent owning this bucket; can be null if it has none (which is an error
+     *                  only once the operation is resolved)
+     * @param coalescing how deltas get summed into one (see PendingEffects)
+     * @return false if the operation was summed into one already in the bucket
+     */
+    public boolean add(int code, float amount, int priority, Owner inventory, int coalescing){
+        if(coalescing != PendingEffects.NO_COALESCING && InventoryOp.isDelta(code)) {
+            int last = lastDelta[code & 0xFF] - 1;
+            if(last >= 0 && priorities[last] == priority &&
+                    (coalescing == PendingEffects.COALESCE_ANY || last == size - 1)) {
+                float net = InventoryOp.signedAmount(codes[last], amounts[last]) +
+                        InventoryOp.signedAmount(code, amount);
+                codes[last] = InventoryOp.deltaCode(code, net);
+                amounts[last] = Math.abs(net);
+                return false;
+            }
+            lastDelta[code & 0xFF] = size + 1;
+        }
+        if(size == effects.length)
+            grow();
+        effects[size] = null;
+        codes[size] = code;
+        amounts[size] = amount;
+        priorities[size] = priority;
+        this.inventory = inventory;
+        size++;
+        encoded++;
+        return true;
+    }
+
+    private void grow(){
+        effects = Arrays.copyOf(effects, size * 2);
+        priorities = Arrays.copyOf(priorities, size * 2);
+        codes = Arrays.copyOf(codes, size * 2);
+        amounts = Arrays.copyOf(amounts, size * 2);
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * sort the effects by priority and run them one after the other
+     * @param stable true if effects with the same priority must run in the order they were registered
+     * @param agent the id of the agent owning this bucket
+     * @param journal where to record the encoded operations as they run; null if nothing is recorded
+     * @param totals the running totals the encoded operations update; null if there are none
+     */
+    public void resolve(boolean stable, int agent, EffectJournal journal, RunningTotals totals){
+        if(size > 1) {
+            PriorityOrder sorter = PriorityOrder.get();
+            int[] order = sorter.sort(priorities, size, stable);
+            //rearrange now: running an effect may end up sorting something else on this same thread
+            if(order != null) {
+                sorter.permute(effects, order, size);
+                sorter.permute(priorities, order, size);
+                if(encoded > 0) {
+                    sorter.permute(codes, order, size);
+                    sorter.permute(amounts, order, size);
+                }
+            }
+        }
+        if(encoded > 0 && inventory == null)
+            throw new IllegalStateException("inventory operations registered for an agent without inventory");
+        for(int i=0; i<size; i++) {
+            Effect effect = effects[i];
+            if(effect != null)
+                effect.run();
+            else {
+                if(totals == null)
+                    InventoryOp.run(codes[i], amounts[i], inventory);
+                else {
+                    GoodType good = GOODS[codes[i] & 0xFF];
+                    float before = AggregateInventories.currentAmount(inventory, good);
+                    InventoryOp.run(codes[i], amounts[i], inventory);
+                    totals.change(good.ordinal(), before, AggregateInventories.currentAmount(inventory, good));
+                }
+                if(journal != null)
+                    journal.record(agent, codes[i], amounts[i], priorities[i]);
+            }
+        }
+    }
+
+    public void clear(){
+        Arrays.fill(effects, 0, size, null);
+        size = 0;
+        encoded = 0;
+        inventory = null;
+        Arrays.fill(lastDelta, 0);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An append-only binary log of every inventory change the schedule resolves in encoded form (inventory operations
+ * and transfers), so that JournalReplay can rebuild the inventories at any day without running a single action. <br>
+ * Pool threads record what they resolve in their own byte buffers, in the order they resolve it; after each stage
+ * of a phase (transfers, then effects) the dispatch thread appends every buffer to the file as a block. All the
+ * changes of an agent within a stage are made by one thread, so replaying block after block repeats them in the same
+ * order and gives the same numbers to the last bit. <br>
+ * File layout: a header (magic, version, entry size) and then blocks of (day, phase index, entries) followed by that
+ * many entries of (agent id, operation code, amount, priority).
+ */
+final class EffectJournal implements AutoCloseable {
+
+    static final int MAGIC = 0x5A4B4A4C;
+
+    static final int VERSION = 1;
+
+    static final int ENTRY_BYTES = 16;
+
+    static final int BLOCK_HEADER_BYTES = 12;
+
+    private final FileChannel channel;
+
+    private final Queue<ThreadLog> allLogs = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<ThreadLog> logs = ThreadLocal.withInitial(() -> {
+        ThreadLog log = new ThreadLog();
+        allLogs.add(log);
+        return log;
+    });
+
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+
+    EffectJournal(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(MAGIC).putInt(VERSION).putInt(ENTRY_BYTES).flip();
+        writeFully(header);
+    }
+
+    /**
+     * note that an encoded inventory operation was just resolved. Any thread
+     */
+    void record(int agent, int code, float amount, int priority){
+        ThreadLog log = logs.get();
+        if(log.bytes.remaining() < ENTRY_BYTES) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(log.bytes.capacity() * 2);
+            log.bytes.flip();
+            bigger.put(log.bytes);
+            log.bytes = bigger;
+        }
+        log.bytes.putInt(agent).putInt(code).putFloat(amount).putInt(priority);
+        log.entries++;
+    }
+
+    /**
+     * append everything recorded since the last time as blocks of this day and phase. Dispatch thread only, while
+     * nothing is being resolved
+     */
+    void flush(int day, int phase) throws IOException {
+        for(ThreadLog log : allLogs) {
+            if(log.entries == 0)
+                continue;
+            blockHeader.clear();
+            blockHeader.putInt(day).putInt(phase).putInt(log.entries).flip();
+            writeFully(blockHeader);
+            log.bytes.flip();
+            writeFully(log.bytes);
+            log.bytes.clear();
+            log.entries = 0;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static final class ThreadLog {
+
+        private ByteBuffer bytes = ByteBuffer.allocateDirect(64 * ENTRY_BYTES);
+
+        private int entries = 0;
+    }
+}
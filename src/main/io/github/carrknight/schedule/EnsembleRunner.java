@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import com.google.common.base.Throwables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent replicas of a model on the same pool. <br>
+ * Replicas take turns: each turn advances one replica by one day, after which it goes back to the end of the line.
+ * At most maxInFlight turns run at the same time, so replicas progress evenly and the pool is never asked to juggle
+ * more schedules than it has use for. No thread ever blocks waiting for a day: each turn starts the next one when it
+ * completes, from a task of its own on the pool, so a day that is over right away doesn't nest turns on the stack. <br>
+ * Each replica gets its own seed, derived deterministically from the master seed and its index.
+ */
+public class EnsembleRunner {
+
+    /**
+     * builds one replica of the model
+     */
+    @FunctionalInterface
+    public interface ReplicaFactory {
+
+        /**
+         * @param replica the index of the replica, from 0
+         * @param seed the seed this replica should use for its randomness
+         * @param pool the pool the replica's schedule should run on
+         * @return the schedule of the new replica, agents and actions registered
+         */
+        public Schedule build(int replica, long seed, ForkJoinPool pool);
+    }
+
+    private final ForkJoinPool pool;
+
+    private final int maxInFlight;
+
+    private final long masterSeed;
+
+    /**
+     * @param pool the pool all the replicas share
+     * @param maxInFlight how many replicas can be in the middle of a day at the same time
+     * @param masterSeed the seed from which all the replica seeds are derived
+     */
+    public EnsembleRunner(ForkJoinPool pool, int maxInFlight, long masterSeed) {
+        if(maxInFlight <= 0)
+            throw new IllegalArgumentException("at least one replica must be allowed in flight, not " + maxInFlight);
+        this.pool = pool;
+        this.maxInFlight = maxInFlight;
+        this.masterSeed = masterSeed;
+    }
+
+    /**
+     * a runner with as many replicas in flight as the pool has threads
+     */
+    public EnsembleRunner(ForkJoinPool pool, long masterSeed) {
+        this(pool, pool.getParallelism(), masterSeed);
+    }
+
+    /**
+     * build the replicas and run them all for this many days, waiting for them to be done
+     * @return the schedules of the replicas, by index. Closing them is up to the caller
+     */
+    public List<Schedule> run(int replicas, int days, ReplicaFactory factory) throws InterruptedException {
+        try {
+            return runAsync(replicas, days, factory).get();
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * build the replicas (in the calling thread) and start running them all for this many days
+     * @return a future completed with the schedules of the replicas once they are all done, or exceptionally as soon
+     * as any of them fails (the others stop at the end of their current day)
+     */
+    public CompletableFuture<List<Schedule>> runAsync(int replicas, int days, ReplicaFactory factory) {
+        if(replicas < 0 || days < 0)
+            throw new IllegalArgumentException("can't run " + replicas + " replicas for " + days + " days");
+
+        SplittableRandom seeds = new SplittableRandom(masterSeed);
+        List<Schedule> schedules = new ArrayList<>(replicas);
+        for(int i=0; i<replicas; i++)
+            schedules.add(factory.build(i, seeds.nextLong(), pool));
+
+        Run run = new Run(Collections.unmodifiableList(schedules), days);
+        run.begin();
+        return run.result;
+    }
+
+    /**
+     * the state of a single call to runAsync
+     */
+    private class Run {
+
+        private final List<Schedule> schedules;
+
+        private final int days;
+
+        /**
+         * days done by each replica
+         */
+        private final int[] daysDone;
+
+        /**
+         * the replicas waiting for their turn
+         */
+        private final Queue<Integer> line = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger unfinished;
+
+        private final CompletableFuture<List<Schedule>> result = new CompletableFuture<>();
+
+        private Run(List<Schedule> schedules, int days) {
+            this.schedules = schedules;
+            this.days = days;
+            this.daysDone = new int[schedules.size()];
+            this.unfinished = new AtomicInteger(schedules.size());
+        }
+
+        private void begin(){
+            if(days == 0 || schedules.isEmpty()) {
+                result.complete(schedules);
+                return;
+            }
+            for(int i=0; i<schedules.size(); i++)
+                line.offer(i);
+            for(int i=0; i<Math.min(maxInFlight, schedules.size()); i++)
+                nextTurn();
+        }
+
+        /**
+         * take the first replica in line and advance it by one day; when that is done put it back in line (unless
+         * it's finished) and start the next turn
+         */
+        private void nextTurn(){
+            if(result.isDone())
+                return;
+            final Integer replica = line.poll();
+            if(replica == null)
+                return;
+            //async: a day already over would otherwise run the next turn inline, one stack frame deeper each time
+            schedules.get(replica).completeADayAsync().whenCompleteAsync((day, failure) -> {
+                if(failure != null) {
+                    result.completeExceptionally(failure);
+                    return;
+                }
+                //only one turn at a time touches a replica, and the futures order the turns
+                daysDone[replica]++;
+                if(daysDone[replica] < days)
+                    line.offer(replica);
+                else if(unfinished.decrementAndGet() == 0)
+                    result.complete(schedules);
+                nextTurn();
+            }, pool);
+        }
+    }
+}
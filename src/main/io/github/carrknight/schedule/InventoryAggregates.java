@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.GoodType;
+
+import java.util.Arrays;
+
+/**
+ * Population statistics of one good across every registered inventory: how many inventories, the total, mean and
+ * (population) variance of what they hold, the smallest and largest holding and, if asked for, a histogram with
+ * fixed bins. Immutable. <br>
+ * Totals kept up to date as effects run (see ScheduleServer.setTrackingTotals) have no min, max or histogram: those are
+ * NaN and empty.
+ */
+public final class InventoryAggregates {
+
+    private final GoodType good;
+
+    private final long count;
+
+    private final double sum;
+
+    private final double mean;
+
+    private final double variance;
+
+    private final double min;
+
+    private final double max;
+
+    private final float lowest;
+
+    private final float highest;
+
+    private final long[] histogram;
+
+    InventoryAggregates(GoodType good, long count, double sum, double mean, double variance, double min, double max,
+                        float lowest, float highest, long[] histogram) {
+        this.good = good;
+        this.count = count;
+        this.sum = sum;
+        this.mean = mean;
+        this.variance = variance;
+        this.min = min;
+        this.max = max;
+        this.lowest = lowest;
+        this.highest = highest;
+        this.histogram = histogram;
+    }
+
+    public GoodType getGood() {
+        return good;
+    }
+
+    /**
+     * how many inventories were looked at
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * the mean holding; NaN if there is no inventory
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * the population variance of the holdings; NaN if there is no inventory
+     */
+    public double getVariance() {
+        return variance;
+    }
+
+    /**
+     * the smallest holding; NaN if there is no inventory or min and max weren't computed
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * the largest holding; NaN if there is no inventory or min and max weren't computed
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * where the first bin of the histogram starts
+     */
+    public float getLowest() {
+        return lowest;
+    }
+
+    /**
+     * where the last bin of the histogram ends
+     */
+    public float getHighest() {
+        return highest;
+    }
+
+    /**
+     * how many inventories hold an amount in each of the equally wide bins between lowest and highest. Holdings
+     * outside the range are counted in the first or last bin. Empty if no histogram was asked for
+     */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "InventoryAggregates{" +
+                "good=" + good +
+                ", count=" + count +
+                ", sum=" + sum +
+                ", mean=" + mean +
+                ", variance=" + variance +
+                ", min=" + min +
+                ", max=" + max +
+                ", histogram=" + Arrays.toString(histogram) +
+                '}';
+    }
+}
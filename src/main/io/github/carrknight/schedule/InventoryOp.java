@@ -0,0 +1,108 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Owner;
+
+/**
+ * The inventory changes the schedule knows how to resolve without an Effect object. Registering one of these only
+ * writes a few numbers in a preallocated buffer; they are interpreted at the barrier, in priority order together with
+ * the ordinary effects of the same agent.
+ */
+public enum InventoryOp {
+
+    /**
+     * inventory.receiveOrProduce(type, amount)
+     */
+    RECEIVE_OR_PRODUCE,
+
+    /**
+     * inventory.consume(type, amount)
+     */
+    CONSUME,
+
+    /**
+     * inventory.resetTo0(type); the amount is ignored
+     */
+    RESET_TO_0;
+
+    private static final InventoryOp[] OPS = values();
+
+    private static final GoodType[] GOOD_TYPES = GoodType.values();
+
+    /**
+     * how an operation and its good are packed in a single int
+     */
+    static int encode(InventoryOp op, GoodType type){
+        return op.ordinal() << 8 | type.ordinal();
+    }
+
+    /**
+     * true for the operations that only add to or take from the inventory; these commute with each other
+     */
+    static boolean isDelta(int code){
+        return (code >>> 8) != RESET_TO_0.ordinal();
+    }
+
+    /**
+     * the change to the inventory of an encoded delta, negative for consumption
+     */
+    static float signedAmount(int code, float amount){
+        return (code >>> 8) == CONSUME.ordinal() ? -amount : amount;
+    }
+
+    /**
+     * the code of the delta adding net to the good (consuming when net is negative); use abs(net) as amount
+     */
+    static int deltaCode(int code, float net){
+        return (net < 0 ? CONSUME.ordinal() : RECEIVE_OR_PRODUCE.ordinal()) << 8 | (code & 0xFF);
+    }
+
+    /**
+     * true if both codes are deltas of the same good
+     */
+    static boolean sameDeltaGood(int code, int other){
+        return isDelta(code) && isDelta(other) && (code & 0xFF) == (other & 0xFF);
+    }
+
+    /**
+     * run an encoded operation on the inventory
+     */
+    static void run(int code, float amount, Owner inventory){
+        GoodType type = GOOD_TYPES[code & 0xFF];
+        switch (OPS[code >>> 8]) {
+            case RECEIVE_OR_PRODUCE:
+                inventory.receiveOrProduce(type, amount);
+                break;
+            case CONSUME:
+                inventory.consume(type, amount);
+                break;
+            case RESET_TO_0:
+                inventory.resetTo0(type);
+                break;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.util.Arrays;
+
+/**
+ * All the effects waiting for the next barrier, bucketed by agent id. <br>
+ * Buckets live in an array indexed by the dense agent id and are kept from one phase to the next; a separate list
+ * holds the ids of the agents that actually have something to resolve, so the barrier never scans idle agents and no
+ * hash map is ever rebuilt. <br>
+ * Agents that were never registered get a negative id for as long as they have effects waiting, -1 being the first
+ * of them, and have buckets of their own, reused by whoever gets the same negative id at later barriers. <br>
+ * Not thread safe: only the dispatch thread adds and clears, the pool only resolves the buckets in between.
+ */
+final class PendingEffects {
+
+    /**
+     * encoded inventory deltas are never summed
+     */
+    static final int NO_COALESCING = 0;
+
+    /**
+     * a delta is summed into the previous one only if that is the last thing in the bucket, so no effect can tell
+     * the difference even when ties run in registration order
+     */
+    static final int COALESCE_ADJACENT = 1;
+
+    /**
+     * a delta is summed into the last delta on the same good with the same priority; fine when ties run in no
+     * particular order since the deltas could have run one after the other anyway
+     */
+    static final int COALESCE_ANY = 2;
+
+    private int coalescing = COALESCE_ANY;
+
+    private EffectBucket[] buckets = new EffectBucket[16];
+
+    /**
+     * the buckets of unregistered agents: id -1 is at 0, -2 at 1 and so on
+     */
+    private EffectBucket[] unregisteredBuckets = new EffectBucket[16];
+
+    /**
+     * the ids of the agents with a non-empty bucket, in order of first effect
+     */
+    private int[] active = new int[16];
+
+    private int activeCount = 0;
+
+    private int effectCount = 0;
+
+    public void add(int agentId, Effect effect){
+        bucketOf(agentId).add(effect);
+        effectCount++;
+    }
+
+    /**
+     * add an encoded inventory operation (see InventoryOp)
+     */
+    public void add(int agentId, int code, float amount, int priority, Owner inventory){
+        if(bucketOf(agentId).add(code, amount, priority, inventory, coalescing))
+            effectCount++;
+    }
+
+    /**
+     * how deltas added from now on are summed: NO_COALESCING, COALESCE_ADJACENT or COALESCE_ANY
+     */
+    public void setCoalescing(int coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * the bucket of the agent, marking it active
+     */
+    private EffectBucket bucketOf(int agentId){
+        EffectBucket bucket;
+        if(agentId >= 0) {
+            if(agentId >= buckets.length)
+                buckets = Arrays.copyOf(buckets, Math.max(agentId + 1, buckets.length * 2));
+            bucket = buckets[agentId];
+            if(bucket == null) {
+                bucket = new EffectBucket();
+                buckets[agentId] = bucket;
+            }
+        }
+        else {
+            int slot = -1 - agentId;
+            if(slot >= unregisteredBuckets.length)
+                unregisteredBuckets = Arrays.copyOf(unregisteredBuckets,
+                                                    Math.max(slot + 1, unregisteredBuckets.length * 2));
+            bucket = unregisteredBuckets[slot];
+            if(bucket == null) {
+                bucket = new EffectBucket();
+                unregisteredBuckets[slot] = bucket;
+            }
+        }
+        if(bucket.isEmpty()) {
+            if(activeCount == active.length)
+                active = Arrays.copyOf(active, activeCount * 2);
+            active[activeCount++] = agentId;
+        }
+        return bucket;
+    }
+
+    public boolean isEmpty(){
+        return activeCount == 0;
+    }
+
+    /**
+     * how many agents have at least one effect
+     */
+    public int agents(){
+        return activeCount;
+    }
+
+    /**
+     * how many effects in total
+     */
+    public int effects(){
+        return effectCount;
+    }
+
+    /**
+     * the bucket of the i-th agent with effects (i being between 0 and agents())
+     */
+    public EffectBucket activeBucket(int i){
+        int agentId = active[i];
+        return agentId >= 0 ? buckets[agentId] : unregisteredBuckets[-1 - agentId];
+    }
+
+    /**
+     * the id of the i-th agent with something to resolve
+     */
+    public int activeAgent(int i){
+        return active[i];
+    }
+
+    public void clear(){
+        for(int i=0; i<activeCount; i++)
+            activeBucket(i).clear();
+        activeCount = 0;
+        effectCount = 0;
+    }
+}
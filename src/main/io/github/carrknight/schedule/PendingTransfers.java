@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * All the transfers of goods between agents waiting for the next barrier, in flat primitive arrays. <br>
+ * At the barrier each transfer is split in a debit of the sender and a credit of the receiver and these are grouped by
+ * agent with a counting sort. Agents are then split in ranges resolved in parallel: every agent belongs to exactly one
+ * range so its inventory is only ever touched by one thread and no lock is needed; each agent gets a single net
+ * change per good. <br>
+ * Not thread safe: only the dispatch thread adds and groups, the pool only applies in between.
+ */
+final class PendingTransfers {
+
+    private static final int GOODS = GoodType.values().length;
+
+    private static final GoodType[] GOOD_TYPES = GoodType.values();
+
+    /**
+     * do not split ranges with fewer debits and credits than this
+     */
+    private static final int GRAIN = 1024;
+
+    private int[] senders = new int[16];
+
+    private int[] receivers = new int[16];
+
+    private int[] goods = new int[16];
+
+    private float[] amounts = new float[16];
+
+    private int size = 0;
+
+    /**
+     * after grouping: the debits and credits of agent i are at [offsets[i], offsets[i+1])
+     */
+    private int[] offsets = new int[16];
+
+    private int[] entryGoods = new int[32];
+
+    private float[] entryAmounts = new float[32];
+
+    public void add(int sender, int receiver, int good, float amount){
+        if(size == senders.length) {
+            senders = Arrays.copyOf(senders, size * 2);
+            receivers = Arrays.copyOf(receivers, size * 2);
+            goods = Arrays.copyOf(goods, size * 2);
+            amounts = Arrays.copyOf(amounts, size * 2);
+        }
+        senders[size] = sender;
+        receivers[size] = receiver;
+        goods[size] = good;
+        amounts[size] = amount;
+        size++;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * group the transfers by agent and return the task applying them
+     * @param agents how many agent ids there are
+     * @param inventories the inventory of each agent, by id
+     * @param journal where the net change of each agent is recorded; null if nothing is
+     * @param totals the running totals to update; null if there are none
+     */
+    public RecursiveAction group(int agents, Owner[] inventories, EffectJournal journal, RunningTotals totals){
+        for(int i=0; i<size; i++) {
+            checkInventory(inventories, senders[i]);
+            checkInventory(inventories, receivers[i]);
+        }
+
+        if(offsets.length < agents + 2)
+            offsets = new int[Math.max(agents + 2, offsets.length * 2)];
+        if(entryGoods.length < size * 2) {
+            entryGoods = new int[size * 2];
+            entryAmounts = new float[size * 2];
+        }
+        //count, shifted by two so that after the prefix sum offsets[i+1] is where agent i's entries start
+        Arrays.fill(offsets, 0, agents + 2, 0);
+        for(int i=0; i<size; i++) {
+            offsets[senders[i] + 2]++;
+            offsets[receivers[i] + 2]++;
+        }
+        for(int i=2; i<agents + 2; i++)
+            offsets[i] += offsets[i - 1];
+        for(int i=0; i<size; i++) {
+            int debit = offsets[senders[i] + 1]++;
+            entryGoods[debit] = goods[i];
+            entryAmounts[debit] = -amounts[i];
+            int credit = offsets[receivers[i] + 1]++;
+            entryGoods[credit] = goods[i];
+            entryAmounts[credit] = amounts[i];
+        }
+        //now offsets[i] is where agent i's entries start and offsets[i+1] where they end
+        return new Apply(inventories, journal, totals, 0, agents);
+    }
+
+    private static void checkInventory(Owner[] inventories, int agent){
+        if(agent >= inventories.length || inventories[agent] == null)
+            throw new IllegalStateException("agent " + agent + " is part of a transfer but has no inventory");
+    }
+
+    public void clear(){
+        size = 0;
+    }
+
+    /**
+     * applies the grouped transfers of the agents in [from, to)
+     */
+    private class Apply extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Owner[] inventories;
+
+        private final EffectJournal journal;
+
+        private final RunningTotals totals;
+
+        private final int from;
+
+        private final int to;
+
+        private Apply(Owner[] inventories, EffectJournal journal, RunningTotals totals, int from, int to) {
+            this.inventories = inventories;
+            this.journal = journal;
+            this.totals = totals;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > 1 && offsets[to] - offsets[from] > GRAIN) {
+                int middle = (from + to) >>> 1;
+                Apply left = new Apply(inventories, journal, totals, from, middle);
+                Apply right = new Apply(inventories, journal, totals, middle, to);
+                right.fork();
+                left.quietlyInvoke();
+                right.quietlyJoin();
+                //complain only once both halves are done, so nothing is still running after the barrier
+                left.join();
+                right.join();
+                return;
+            }
+            float[] net = new float[GOODS];
+            for(int agent=from; agent<to; agent++) {
+                int start = offsets[agent];
+                int end = offsets[agent + 1];
+                if(start == end)
+                    continue;
+                for(int i=start; i<end; i++)
+                    net[entryGoods[i]] += entryAmounts[i];
+                Owner inventory = inventories[agent];
+                for(int good=0; good<GOODS; good++) {
+                    float before = totals == null || net[good] == 0 ? 0 :
+                            AggregateInventories.currentAmount(inventory, GOOD_TYPES[good]);
+                    if(net[good] > 0)
+                        inventory.receiveOrProduce(GOOD_TYPES[good], net[good]);
+                    else if(net[good] < 0)
+                        inventory.consume(GOOD_TYPES[good], -net[good]);
+                    if(totals != null && net[good] != 0)
+                        totals.change(good, before,
+                                      AggregateInventories.currentAmount(inventory, GOOD_TYPES[good]));
+                    if(journal != null && net[good] != 0) {
+                        int code = InventoryOp.deltaCode(InventoryOp.encode(InventoryOp.RECEIVE_OR_PRODUCE,
+                                GOOD_TYPES[good]), net[good]);
+                        journal.record(agent, code, Math.abs(net[good]), 0);
+                    }
+                    net[good] = 0;
+                }
+            }
+        }
+    }
+}
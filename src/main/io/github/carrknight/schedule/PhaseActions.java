@@ -0,0 +1,306 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import com.google.common.base.Throwables;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * All the recurring actions of one phase, stored as a flat array of reusable fork/join tasks. <br>
+ * This is itself the root task of the phase: it forks every action and joins them all. Both the root and the
+ * children are reinitialized before each run so after the first day running a phase allocates nothing. <br>
+ * As soon as one action of the phase belongs to a group or waits for something, the whole phase runs as an
+ * ActionGraph instead. The graph is linked at the barrier that adds the actions, so that an action waiting for
+ * something that isn't in the phase, or for itself in a circle, is rejected right away rather than when the phase
+ * runs. <br>
+ * Agent actions are kept apart, with the id of their agent, and run in parallel chunks next to the others (or agent
+ * by agent when the phase is pipelined, see PipelineSegment). <br>
+ * Not thread safe: only the dispatch thread should add to it and only while it isn't running.
+ */
+final class PhaseActions extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private RecurringTask[] tasks = new RecurringTask[8];
+
+    /**
+     * the group and prerequisites of each action; null for the actions that have neither
+     */
+    private Dependencies[] dependencies = new Dependencies[8];
+
+    private int size = 0;
+
+    private boolean anyDependencies = false;
+
+    /**
+     * actions touching only their own agent, and who that agent is
+     */
+    private RecurringAction[] agentActions = new RecurringAction[8];
+
+    private int[] agentActionOwners = new int[8];
+
+    private int agentActionCount = 0;
+
+    /**
+     * goes up with every action added, so whoever indexes the actions knows when to do it again
+     */
+    private int version = 0;
+
+    /**
+     * built when first needed, thrown away when a new action is added
+     */
+    private ActionGraph graph;
+
+    /**
+     * how many of the actions were there when the graph was last linked; the ones after are dropped if they don't fit
+     */
+    private int linkedSize = 0;
+
+    public void add(RecurringAction action){
+        add(action, null);
+    }
+
+    /**
+     * @param dependencies the group of the action and what it waits for; can be null
+     */
+    public void add(RecurringAction action, Dependencies dependencies){
+        if(size == tasks.length) {
+            tasks = Arrays.copyOf(tasks, size * 2);
+            this.dependencies = Arrays.copyOf(this.dependencies, size * 2);
+        }
+        this.dependencies[size] = dependencies;
+        tasks[size++] = new RecurringTask(action);
+        anyDependencies |= dependencies != null;
+        graph = null;
+        version++;
+    }
+
+    /**
+     * add an action that only reads and changes the state of its own agent
+     */
+    public void addAgentAction(int agentId, RecurringAction action){
+        if(agentActionCount == agentActions.length) {
+            agentActions = Arrays.copyOf(agentActions, agentActionCount * 2);
+            agentActionOwners = Arrays.copyOf(agentActionOwners, agentActionCount * 2);
+        }
+        agentActions[agentActionCount] = action;
+        agentActionOwners[agentActionCount] = agentId;
+        agentActionCount++;
+        version++;
+    }
+
+    public boolean isEmpty(){
+        return size == 0 && agentActionCount == 0;
+    }
+
+    /**
+     * how many actions, agent actions included
+     */
+    public int size() {
+        return size + agentActionCount;
+    }
+
+    /**
+     * true if there is any action that isn't an agent action
+     */
+    public boolean hasSharedActions(){
+        return size > 0;
+    }
+
+    public int agentActionCount() {
+        return agentActionCount;
+    }
+
+    public RecurringAction agentAction(int i){
+        return agentActions[i];
+    }
+
+    public int agentActionOwner(int i){
+        return agentActionOwners[i];
+    }
+
+    public int version() {
+        return version;
+    }
+
+    @Override
+    protected void compute() {
+        //agent actions go on their own, in chunks
+        ForkJoinTask<?> agentRun = agentActionCount == 0 ? null : new AgentChunk(0, agentActionCount).fork();
+        try {
+            if(anyDependencies)
+                runGraph();
+            else if(size > 0)
+                runFlat();
+        }
+        finally {
+            if(agentRun != null)
+                agentRun.quietlyJoin();
+        }
+        if(agentRun != null)
+            agentRun.join();
+    }
+
+    /**
+     * link the actions added since last time into the graph, if the phase has one. If they don't fit (they wait for
+     * an action not in the phase, they are in the phase twice, they close a circle) they are all dropped, and the
+     * phase goes back to the actions it had before
+     * @throws IllegalStateException if the actions added don't fit
+     */
+    public void link(){
+        if(!anyDependencies || graph != null) {
+            linkedSize = size;
+            return;
+        }
+        RecurringAction[] actions = new RecurringAction[size];
+        for(int i=0; i<size; i++)
+            actions[i] = tasks[i].action;
+        try {
+            graph = ActionGraph.build(actions, dependencies, size);
+            linkedSize = size;
+        }
+        catch (IllegalStateException e) {
+            Arrays.fill(tasks, linkedSize, size, null);
+            Arrays.fill(dependencies, linkedSize, size, null);
+            size = linkedSize;
+            anyDependencies = false;
+            for(int i=0; i<size; i++)
+                anyDependencies |= dependencies[i] != null;
+            version++;
+            throw e;
+        }
+    }
+
+    private void runGraph(){
+        if(graph == null)
+            link();
+        graph.runAndRethrow();
+    }
+
+    private void runFlat(){
+        //fork all but the first, which this thread does on its own
+        for (int i = 1; i < size; i++) {
+            tasks[i].reinitialize();
+            tasks[i].fork();
+        }
+        tasks[0].reinitialize();
+        tasks[0].quietlyInvoke();
+        //wait for everybody before complaining so that no task is still running when we reinitialize it tomorrow
+        for (int i = size - 1; i > 0; i--)
+            tasks[i].quietlyJoin();
+        //join() on a finished task rethrows its exception, if any
+        for (int i = 0; i < size; i++)
+            tasks[i].join();
+    }
+
+    /**
+     * runs the agent actions in [from,to), splitting in halves down to a grain
+     */
+    private final class AgentChunk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int GRAIN = 256;
+
+        private final int from;
+
+        private final int to;
+
+        private AgentChunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= GRAIN) {
+                //like the other actions of the phase, one failing doesn't stop the others
+                Throwable failure = null;
+                for(int i=from; i<to; i++) {
+                    try {
+                        agentActions[i].act();
+                    }
+                    catch (Throwable t) {
+                        if(failure == null)
+                            failure = t;
+                    }
+                }
+                if(failure != null)
+                    throw Throwables.propagate(failure);
+            }
+            else {
+                int middle = (from + to) >>> 1;
+                AgentChunk left = new AgentChunk(from, middle);
+                AgentChunk right = new AgentChunk(middle, to);
+                right.fork();
+                left.quietlyInvoke();
+                right.quietlyJoin();
+                //complain only once both halves are done, so nothing is still running after the barrier
+                left.join();
+                right.join();
+            }
+        }
+    }
+
+    /**
+     * the reusable fork/join shell around a recurring action
+     */
+    private static final class RecurringTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RecurringAction action;
+
+        private RecurringTask(RecurringAction action) {
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            action.act();
+        }
+    }
+
+    /**
+     * the group an action belongs to and the groups and actions it waits for
+     */
+    static final class Dependencies {
+
+        final String group;
+
+        final String[] afterGroups;
+
+        final RecurringAction[] afterActions;
+
+        Dependencies(String group, String[] afterGroups, RecurringAction[] afterActions) {
+            this.group = group;
+            this.afterGroups = afterGroups.clone();
+            this.afterActions = afterActions.clone();
+        }
+    }
+}
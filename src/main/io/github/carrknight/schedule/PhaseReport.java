@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+/**
+ * What happened during one phase: how long it took and how much work there was
+ */
+public final class PhaseReport {
+
+    private final int day;
+
+    private final Phase phase;
+
+    private final long actionNanos;
+
+    private final long effectNanos;
+
+    private final long handoffNanos;
+
+    private final int actions;
+
+    private final int agentsWithEffects;
+
+    private final int effects;
+
+    private final int registrations;
+
+    private final int channelBacklog;
+
+    public PhaseReport(int day, Phase phase, long actionNanos, long effectNanos, long handoffNanos,
+                       int actions, int agentsWithEffects, int effects, int registrations, int channelBacklog) {
+        this.day = day;
+        this.phase = phase;
+        this.actionNanos = actionNanos;
+        this.effectNanos = effectNanos;
+        this.handoffNanos = handoffNanos;
+        this.actions = actions;
+        this.agentsWithEffects = agentsWithEffects;
+        this.effects = effects;
+        this.registrations = registrations;
+        this.channelBacklog = channelBacklog;
+    }
+
+    public int getDay() {
+        return day;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * wall time spent running the recurring actions
+     */
+    public long getActionNanos() {
+        return actionNanos;
+    }
+
+    /**
+     * wall time spent resolving the effects
+     */
+    public long getEffectNanos() {
+        return effectNanos;
+    }
+
+    /**
+     * wall time between the phase being asked for (or the previous phase ending, when running many days in a row)
+     * and its end that wasn't actions or effects: handing the work to the dispatch thread and merging registrations
+     */
+    public long getHandoffNanos() {
+        return handoffNanos;
+    }
+
+    /**
+     * how many recurring actions ran
+     */
+    public int getActions() {
+        return actions;
+    }
+
+    /**
+     * how many agents had at least one effect to resolve
+     */
+    public int getAgentsWithEffects() {
+        return agentsWithEffects;
+    }
+
+    /**
+     * how many effects were resolved
+     */
+    public int getEffects() {
+        return effects;
+    }
+
+    /**
+     * how many registrations (agents, effects and actions) were merged at the two barriers of the phase
+     */
+    public int getRegistrations() {
+        return registrations;
+    }
+
+    /**
+     * how many commands were still waiting in the dispatch channel when the phase ended
+     */
+    public int getChannelBacklog() {
+        return channelBacklog;
+    }
+
+    @Override
+    public String toString() {
+        return "day " + day + ", " + phase +
+                ": actions " + actions + " in " + actionNanos + "ns" +
+                ", effects " + effects + " of " + agentsWithEffects + " agents in " + effectNanos + "ns" +
+                ", handoff " + handoffNanos + "ns" +
+                ", registrations " + registrations +
+                ", backlog " + channelBacklog;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import com.google.common.base.Throwables;
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A run of consecutive phases completed agent by agent instead of phase by phase: each agent goes through its actions
+ * of the first phase, then its own effects, then its actions of the second phase and so on, while the other agents
+ * do the same in parallel. Nobody waits for the slowest agent until the end of the run. <br>
+ * Only agent actions can be pipelined: they promise to read and change their own agent only. Effects they register
+ * (by id) for their own agent are resolved right after the agent's phase; anything else they register waits for the
+ * global barrier at the end of the run. <br>
+ * The actions are indexed agent by agent once and again only when some phase of the run gets new actions.
+ */
+final class PipelineSegment {
+
+    /**
+     * agents with actions in the same leaf task
+     */
+    private static final int GRAIN = 64;
+
+    private final PhaseActions[] phases;
+
+    /**
+     * the version of each phase when indexed
+     */
+    private final int[] versions;
+
+    /**
+     * the agents with at least one action in the run, ascending
+     */
+    private int[] agents;
+
+    /**
+     * the actions of the i-th agent are at [agentStart[i], agentStart[i+1]), in phase order
+     */
+    private int[] agentStart;
+
+    private RecurringAction[] actions;
+
+    /**
+     * which phase of the run each action belongs to
+     */
+    private int[] actionPhases;
+
+    PipelineSegment(PhaseActions[] phases) {
+        this.phases = phases.clone();
+        this.versions = new int[phases.length];
+        index();
+    }
+
+    /**
+     * true if some phase got new actions since indexing
+     */
+    boolean isStale(){
+        for(int i=0; i<phases.length; i++)
+            if(phases[i].version() != versions[i])
+                return true;
+        return false;
+    }
+
+    /**
+     * counting sort of all the agent actions by agent, keeping phase order (and registration order within a phase)
+     */
+    private void index(){
+        int total = 0;
+        int maxAgent = -1;
+        for(int p=0; p<phases.length; p++) {
+            versions[p] = phases[p].version();
+            total += phases[p].agentActionCount();
+            for(int i=0; i<phases[p].agentActionCount(); i++)
+                maxAgent = Math.max(maxAgent, phases[p].agentActionOwner(i));
+        }
+        int[] counts = new int[maxAgent + 2];
+        for(PhaseActions phase : phases)
+            for(int i=0; i<phase.agentActionCount(); i++)
+                counts[phase.agentActionOwner(i) + 1]++;
+        int agentCount = 0;
+        for(int i=1; i<counts.length; i++)
+            if(counts[i] > 0)
+                agentCount++;
+        for(int i=1; i<counts.length; i++)
+            counts[i] += counts[i - 1];
+
+        agents = new int[agentCount];
+        agentStart = new int[agentCount + 1];
+        int next = 0;
+        for(int agent=0; agent<=maxAgent; agent++)
+            if(counts[agent + 1] > counts[agent]) {
+                agents[next] = agent;
+                agentStart[next] = counts[agent];
+                next++;
+            }
+        agentStart[agentCount] = total;
+
+        actions = new RecurringAction[total];
+        actionPhases = new int[total];
+        for(int p=0; p<phases.length; p++)
+            for(int i=0; i<phases[p].agentActionCount(); i++) {
+                int slot = counts[phases[p].agentActionOwner(i)]++;
+                actions[slot] = phases[p].agentAction(i);
+                actionPhases[slot] = p;
+            }
+    }
+
+    /**
+     * how many agent actions the run has in its i-th phase
+     */
+    int actionsIn(int phase){
+        return phases[phase].agentActionCount();
+    }
+
+    /**
+     * the task running every agent through the whole run
+     * @param schedule whose worker buffers route the agents' own effects
+     * @param inventories the inventories of the agents, by id
+     * @param stable whether effects with the same priority keep registration order
+     * @param coalescing how inventory deltas are summed (see PendingEffects)
+     * @param journal where the agents' resolved inventory operations are recorded; null if nothing is
+     * @param totals the running totals those operations update; null if there are none
+     */
+    RecursiveAction run(ScheduleServer schedule, Owner[] inventories, boolean stable, int coalescing,
+                        EffectJournal journal, RunningTotals totals){
+        return new Run(schedule, inventories, stable, coalescing, journal, totals, 0, agents.length);
+    }
+
+    /**
+     * the agent a pipelined thread is working on right now and the bucket its own effects go to
+     */
+    static final class AgentScope {
+
+        int agent = -1;
+
+        final EffectBucket effects = new EffectBucket();
+
+        Owner inventory;
+
+        final int coalescing;
+
+        private AgentScope(int coalescing) {
+            this.coalescing = coalescing;
+        }
+    }
+
+    private final class Run extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ScheduleServer schedule;
+
+        private final Owner[] inventories;
+
+        private final boolean stable;
+
+        private final int coalescing;
+
+        private final EffectJournal journal;
+
+        private final RunningTotals totals;
+
+        private final int from;
+
+        private final int to;
+
+        private Run(ScheduleServer schedule, Owner[] inventories, boolean stable, int coalescing,
+                    EffectJournal journal, RunningTotals totals, int from, int to) {
+            this.schedule = schedule;
+            this.inventories = inventories;
+            this.stable = stable;
+            this.coalescing = coalescing;
+            this.journal = journal;
+            this.totals = totals;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > GRAIN) {
+                int middle = (from + to) >>> 1;
+                Run left = new Run(schedule, inventories, stable, coalescing, journal, totals, from, middle);
+                Run right = new Run(schedule, inventories, stable, coalescing, journal, totals, middle, to);
+                right.fork();
+                left.quietlyInvoke();
+                right.quietlyJoin();
+                //complain only once both halves are done, so nothing is still running after the barrier
+                left.join();
+                right.join();
+                return;
+            }
+
+            AgentScope scope = new AgentScope(coalescing);
+            RegistrationBuffer buffer = schedule.currentWorkerBuffer();
+            //an action forking and joining may make this thread steal another run: keep whatever scope was there
+            AgentScope outer = buffer.enter(null);
+            Throwable failure = null;
+            try {
+                for(int a=from; a<to; a++) {
+                    int agent = agents[a];
+                    scope.agent = agent;
+                    scope.inventory = agent < inventories.length ? inventories[agent] : null;
+                    int i = agentStart[a];
+                    int end = agentStart[a + 1];
+                    try {
+                        while(i < end) {
+                            //this agent's actions of one phase, then its effects
+                            int phase = actionPhases[i];
+                            buffer.enter(scope);
+                            while(i < end && actionPhases[i] == phase)
+                                actions[i++].act();
+                            //effects registering more effects wait for the barrier, as they would without pipelining
+                            buffer.enter(null);
+                            try {
+                                scope.effects.resolve(stable, agent, journal, totals);
+                            }
+                            finally {
+                                scope.effects.clear();
+                            }
+                        }
+                    }
+                    catch (Throwable t) {
+                        //the rest of this agent's run is skipped, the other agents go on
+                        buffer.enter(null);
+                        scope.effects.clear();
+                        if(failure == null)
+                            failure = t;
+                    }
+                }
+            }
+            finally {
+                buffer.enter(outer);
+            }
+            if(failure != null)
+                throw Throwables.propagate(failure);
+        }
+    }
+}
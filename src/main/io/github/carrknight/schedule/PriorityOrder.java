@@ -0,0 +1,255 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import java.util.Arrays;
+
+/**
+ * Sorts effects by their (int) priority without going through Comparable. Computes the permutation that puts the
+ * priorities in order, using scratch arrays owned by the calling thread so nothing is allocated once warmed up. <br>
+ * <ul>
+ *     <li>Nothing to do when there are less than two effects or the priorities are already in order.</li>
+ *     <li>Insertion sort for short lists.</li>
+ *     <li>Counting sort if the priorities are packed tightly (their range is smaller than the list).</li>
+ *     <li>Otherwise LSD radix sort in stable mode, or in fast mode for long lists where linear time beats the
+ *     extra passes.</li>
+ *     <li>Otherwise (fast mode, mid-sized lists with spread out priorities) in-place quicksort of the permutation.</li>
+ * </ul>
+ * Only quicksort may break ties out of registration order: counting and radix sort are stable whatever the mode.
+ * The permutation returned is only valid until the same thread sorts again, so it should be applied right away.
+ */
+final class PriorityOrder {
+
+    private static final int INSERTION_THRESHOLD = 16;
+
+    /**
+     * from this size on, radix sort is used even when stability isn't needed
+     */
+    private static final int RADIX_THRESHOLD = 256;
+
+    private static final int RADIX_BITS = 8;
+
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private static final ThreadLocal<PriorityOrder> SCRATCH = ThreadLocal.withInitial(PriorityOrder::new);
+
+    private int[] order = new int[INSERTION_THRESHOLD * 2];
+
+    private int[] swap = new int[INSERTION_THRESHOLD * 2];
+
+    private int[] counts = new int[RADIX + 1];
+
+    private Object[] objects = new Object[INSERTION_THRESHOLD * 2];
+
+    private int[] ints = new int[INSERTION_THRESHOLD * 2];
+
+    private float[] floats = new float[INSERTION_THRESHOLD * 2];
+
+    private PriorityOrder() {
+    }
+
+    /**
+     * the scratch space of the calling thread
+     */
+    public static PriorityOrder get(){
+        return SCRATCH.get();
+    }
+
+    /**
+     * find the order of the first size priorities
+     * @return the indices of the priorities in sorted order or null if they are sorted already
+     */
+    public int[] sort(int[] priorities, int size, boolean stable){
+        if(size < 2 || isSorted(priorities, size))
+            return null;
+
+        if(order.length < size) {
+            order = new int[Math.max(size, order.length * 2)];
+            swap = new int[order.length];
+        }
+        for(int i=0; i<size; i++)
+            order[i] = i;
+
+        if(size <= INSERTION_THRESHOLD) {
+            insertionSort(priorities, order, 0, size);
+            return order;
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for(int i=0; i<size; i++) {
+            min = Math.min(min, priorities[i]);
+            max = Math.max(max, priorities[i]);
+        }
+        long range = (long) max - (long) min;
+        if(range < size)
+            countingSort(priorities, size, min, (int) range + 1);
+        else if(stable || size >= RADIX_THRESHOLD)
+            radixSort(priorities, size, min, range);
+        else
+            quickSort(priorities, order, 0, size);
+        return order;
+    }
+
+    private static boolean isSorted(int[] priorities, int size){
+        for(int i=1; i<size; i++)
+            if(priorities[i] < priorities[i-1])
+                return false;
+        return true;
+    }
+
+    /**
+     * stable, sorts order[from,to)
+     */
+    private static void insertionSort(int[] priorities, int[] order, int from, int to){
+        for(int i=from+1; i<to; i++) {
+            int index = order[i];
+            int key = priorities[index];
+            int j = i - 1;
+            while(j >= from && priorities[order[j]] > key) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
+        }
+    }
+
+    /**
+     * in place, not stable: three-way partitioning around the median of three, recursing on the smaller side
+     */
+    private static void quickSort(int[] priorities, int[] order, int from, int to){
+        while(to - from > INSERTION_THRESHOLD) {
+            int middle = (from + to) >>> 1;
+            int pivot = median(priorities[order[from]], priorities[order[middle]], priorities[order[to - 1]]);
+            //order[from,lt) < pivot, order[lt,i) == pivot, order[gt,to) > pivot
+            int lt = from;
+            int i = from;
+            int gt = to;
+            while(i < gt) {
+                int key = priorities[order[i]];
+                if(key < pivot)
+                    swap(order, lt++, i++);
+                else if(key > pivot)
+                    swap(order, i, --gt);
+                else
+                    i++;
+            }
+            if(lt - from < to - gt) {
+                quickSort(priorities, order, from, lt);
+                from = gt;
+            }
+            else {
+                quickSort(priorities, order, gt, to);
+                to = lt;
+            }
+        }
+        insertionSort(priorities, order, from, to);
+    }
+
+    private static int median(int a, int b, int c){
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static void swap(int[] array, int i, int j){
+        int temp = array[i];
+        array[i] = array[j];
+        array[j] = temp;
+    }
+
+    /**
+     * stable, for priorities all within [min, min + range)
+     */
+    private void countingSort(int[] priorities, int size, int min, int range){
+        if(counts.length < range + 1)
+            counts = new int[Math.max(range + 1, counts.length * 2)];
+        Arrays.fill(counts, 0, range + 1, 0);
+        for(int i=0; i<size; i++)
+            counts[priorities[i] - min + 1]++;
+        for(int i=0; i<range; i++)
+            counts[i + 1] += counts[i];
+        for(int i=0; i<size; i++)
+            order[counts[priorities[i] - min]++] = i;
+    }
+
+    /**
+     * stable, least significant digit first, only as many digits as the range of priorities needs
+     */
+    private void radixSort(int[] priorities, int size, int min, long range){
+        int digits = (64 - Long.numberOfLeadingZeros(range) + RADIX_BITS - 1) / RADIX_BITS;
+        int[] from = order;
+        int[] to = swap;
+        for(int digit=0; digit<digits; digit++) {
+            int shift = digit * RADIX_BITS;
+            Arrays.fill(counts, 0, RADIX + 1, 0);
+            for(int i=0; i<size; i++)
+                counts[(((priorities[from[i]] - min) >>> shift) & (RADIX - 1)) + 1]++;
+            for(int i=0; i<RADIX; i++)
+                counts[i + 1] += counts[i];
+            for(int i=0; i<size; i++) {
+                int index = from[i];
+                to[counts[((priorities[index] - min) >>> shift) & (RADIX - 1)]++] = index;
+            }
+            int[] temp = from;
+            from = to;
+            to = temp;
+        }
+        //the sorted permutation is in "from"; make sure it's the one we return
+        if(from != order)
+            System.arraycopy(from, 0, order, 0, size);
+    }
+
+    /**
+     * rearrange column[0,size) so that column[i] becomes column[order[i]]
+     */
+    public void permute(Object[] column, int[] order, int size){
+        if(objects.length < size)
+            objects = new Object[Math.max(size, objects.length * 2)];
+        for(int i=0; i<size; i++)
+            objects[i] = column[order[i]];
+        System.arraycopy(objects, 0, column, 0, size);
+        Arrays.fill(objects, 0, size, null);
+    }
+
+    /**
+     * rearrange column[0,size) so that column[i] becomes column[order[i]]
+     */
+    public void permute(int[] column, int[] order, int size){
+        if(ints.length < size)
+            ints = new int[Math.max(size, ints.length * 2)];
+        for(int i=0; i<size; i++)
+            ints[i] = column[order[i]];
+        System.arraycopy(ints, 0, column, 0, size);
+    }
+
+    /**
+     * rearrange column[0,size) so that column[i] becomes column[order[i]]
+     */
+    public void permute(float[] column, int[] order, int size){
+        if(floats.length < size)
+            floats = new float[Math.max(size, floats.length * 2)];
+        for(int i=0; i<size; i++)
+            floats[i] = column[order[i]];
+        System.arraycopy(floats, 0, column, 0, size);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.util.Arrays;
+
+/**
+ * Registrations (agents, effects, actions and transfers) made by a single worker thread and not yet seen by the
+ * schedule. <br>
+ * Only its own thread ever writes to it and the dispatch thread only drains it at a phase barrier, when the pool
+ * is not running anything for the schedule, so no lock or CAS is needed. The arrays are reused after each drain so
+ * steady-state registration allocates nothing.
+ */
+final class RegistrationBuffer {
+
+    /**
+     * the thread writing here; once it's dead and the buffer drained, the buffer can be forgotten
+     */
+    private final Thread owner;
+
+    private Agent[] newAgents = new Agent[4];
+
+    private int[] newAgentIds = new int[4];
+
+    /**
+     * the inventory of each new agent, null if it has none
+     */
+    private Owner[] newInventories = new Owner[4];
+
+    private int newAgentCount = 0;
+
+    private Effect[] effects = new Effect[16];
+
+    /**
+     * the agent of each effect when registered by object; null when registered by id
+     */
+    private Agent[] effectOwners = new Agent[16];
+
+    private int[] effectOwnerIds = new int[16];
+
+    /**
+     * for encoded inventory operations (the ones with a null effect): code, amount and priority
+     */
+    private int[] effectCodes = new int[16];
+
+    private float[] effectAmounts = new float[16];
+
+    private int[] effectPriorities = new int[16];
+
+    private int effectCount = 0;
+
+    /**
+     * the actions of the phase each new action belongs to
+     */
+    private PhaseActions[] actionPhases = new PhaseActions[4];
+
+    private RecurringAction[] actions = new RecurringAction[4];
+
+    private PhaseActions.Dependencies[] actionDependencies = new PhaseActions.Dependencies[4];
+
+    /**
+     * the agent of each agent action; -1 for the others
+     */
+    private int[] actionAgents = new int[4];
+
+    private int actionCount = 0;
+
+    private int[] transferSenders = new int[16];
+
+    private int[] transferReceivers = new int[16];
+
+    private int[] transferGoods = new int[16];
+
+    private float[] transferAmounts = new float[16];
+
+    private int transferCount = 0;
+
+    /**
+     * the pipelined agent this thread is running right now, if any
+     */
+    private PipelineSegment.AgentScope scope;
+
+    /**
+     * a buffer for the calling thread
+     */
+    RegistrationBuffer() {
+        owner = Thread.currentThread();
+    }
+
+    /**
+     * true if the thread writing here is gone, so nothing more can come in
+     */
+    public boolean isOrphaned(){
+        return !owner.isAlive();
+    }
+
+    public void addAgent(Agent agent, int id, Owner inventory){
+        if(newAgentCount == newAgents.length) {
+            newAgents = Arrays.copyOf(newAgents, newAgentCount * 2);
+            newAgentIds = Arrays.copyOf(newAgentIds, newAgentCount * 2);
+            newInventories = Arrays.copyOf(newInventories, newAgentCount * 2);
+        }
+        newAgents[newAgentCount] = agent;
+        newAgentIds[newAgentCount] = id;
+        newInventories[newAgentCount] = inventory;
+        newAgentCount++;
+    }
+
+    public void addEffect(Effect e, Agent a){
+        addEffect(e, a, -1);
+    }
+
+    public void addEffect(Effect e, int agentId){
+        addEffect(e, null, agentId);
+    }
+
+    private void addEffect(Effect e, Agent a, int agentId){
+        if(effectCount == effects.length)
+            growEffects();
+        effects[effectCount] = e;
+        effectOwners[effectCount] = a;
+        effectOwnerIds[effectCount] = agentId;
+        effectCount++;
+    }
+
+    /**
+     * add an encoded inventory operation; stored in the same sequence as the effects to keep registration order
+     * @param coalesce if true and the last thing registered was a delta of the same agent, good and priority, sum
+     *                 this delta into it
+     */
+    public void addInventoryEffect(int agentId, int code, float amount, int priority, boolean coalesce){
+        int last = effectCount - 1;
+        if(coalesce && last >= 0 && effects[last] == null && effectOwnerIds[last] == agentId &&
+                effectPriorities[last] == priority && InventoryOp.sameDeltaGood(effectCodes[last], code)) {
+            float net = InventoryOp.signedAmount(effectCodes[last], effectAmounts[last]) +
+                    InventoryOp.signedAmount(code, amount);
+            effectCodes[last] = InventoryOp.deltaCode(code, net);
+            effectAmounts[last] = Math.abs(net);
+            return;
+        }
+        if(effectCount == effects.length)
+            growEffects();
+        effects[effectCount] = null;
+        effectOwners[effectCount] = null;
+        effectOwnerIds[effectCount] = agentId;
+        effectCodes[effectCount] = code;
+        effectAmounts[effectCount] = amount;
+        effectPriorities[effectCount] = priority;
+        effectCount++;
+    }
+
+    private void growEffects(){
+        effects = Arrays.copyOf(effects, effectCount * 2);
+        effectOwners = Arrays.copyOf(effectOwners, effectCount * 2);
+        effectOwnerIds = Arrays.copyOf(effectOwnerIds, effectCount * 2);
+        effectCodes = Arrays.copyOf(effectCodes, effectCount * 2);
+        effectAmounts = Arrays.copyOf(effectAmounts, effectCount * 2);
+        effectPriorities = Arrays.copyOf(effectPriorities, effectCount * 2);
+    }
+
+    public void addAction(PhaseActions phase, RecurringAction action, PhaseActions.Dependencies dependencies){
+        addAction(phase, action, dependencies, -1);
+    }
+
+    public void addAgentAction(PhaseActions phase, int agentId, RecurringAction action){
+        addAction(phase, action, null, agentId);
+    }
+
+    private void addAction(PhaseActions phase, RecurringAction action, PhaseActions.Dependencies dependencies,
+                           int agentId){
+        if(actionCount == actions.length) {
+            actionPhases = Arrays.copyOf(actionPhases, actionCount * 2);
+            actions = Arrays.copyOf(actions, actionCount * 2);
+            actionDependencies = Arrays.copyOf(actionDependencies, actionCount * 2);
+            actionAgents = Arrays.copyOf(actionAgents, actionCount * 2);
+        }
+        actionPhases[actionCount] = phase;
+        actions[actionCount] = action;
+        actionDependencies[actionCount] = dependencies;
+        actionAgents[actionCount] = agentId;
+        actionCount++;
+    }
+
+    public void addTransfer(int sender, int receiver, int good, float amount){
+        if(transferCount == transferSenders.length) {
+            transferSenders = Arrays.copyOf(transferSenders, transferCount * 2);
+            transferReceivers = Arrays.copyOf(transferReceivers, transferCount * 2);
+            transferGoods = Arrays.copyOf(transferGoods, transferCount * 2);
+            transferAmounts = Arrays.copyOf(transferAmounts, transferCount * 2);
+        }
+        transferSenders[transferCount] = sender;
+        transferReceivers[transferCount] = receiver;
+        transferGoods[transferCount] = good;
+        transferAmounts[transferCount] = amount;
+        transferCount++;
+    }
+
+    /**
+     * first half of the drain: tell the schedule about the new agents. All buffers get this before any effect is
+     * drained so that effects registered by agent object find the right id whichever thread registered the agent
+     * @return how many agents were drained
+     */
+    public int drainAgentsInto(ScheduleServer schedule){
+        int drained = newAgentCount;
+        for(int i=0; i<newAgentCount; i++)
+            schedule.recordAgent(newAgents[i], newAgentIds[i], newInventories[i]);
+        Arrays.fill(newAgents,0,newAgentCount,null);
+        Arrays.fill(newInventories,0,newAgentCount,null);
+        newAgentCount = 0;
+        return drained;
+    }
+
+    /**
+     * second half of the drain: move effects, actions and transfers into the schedule, in registration order, and
+     * empty the buffer. Must only be called while the owning thread is not registering.
+     * @return how many effects, actions and transfers were drained
+     */
+    public int drainInto(ScheduleServer schedule, PendingEffects pendingEffects, PendingTransfers pendingTransfers){
+        int drained = effectCount + actionCount + transferCount;
+        for(int i=0; i<effectCount; i++) {
+            Effect effect = effects[i];
+            if(effect == null) {
+                int id = effectOwnerIds[i];
+                pendingEffects.add(id, effectCodes[i], effectAmounts[i], effectPriorities[i], schedule.inventoryOf(id));
+                continue;
+            }
+            Agent owner = effectOwners[i];
+            pendingEffects.add(owner == null ? effectOwnerIds[i] : schedule.idOf(owner), effect);
+        }
+        for(int i=0; i<actionCount; i++)
+            if(actionAgents[i] >= 0)
+                actionPhases[i].addAgentAction(actionAgents[i], actions[i]);
+            else
+                actionPhases[i].add(actions[i], actionDependencies[i]);
+        for(int i=0; i<transferCount; i++)
+            pendingTransfers.add(transferSenders[i], transferReceivers[i], transferGoods[i], transferAmounts[i]);
+
+        //let go of the references but keep the arrays
+        Arrays.fill(effects,0,effectCount,null);
+        Arrays.fill(effectOwners,0,effectCount,null);
+        Arrays.fill(actionPhases,0,actionCount,null);
+        Arrays.fill(actions,0,actionCount,null);
+        Arrays.fill(actionDependencies,0,actionCount,null);
+        effectCount = 0;
+        actionCount = 0;
+        transferCount = 0;
+        return drained;
+    }
+
+    /**
+     * start (or, with null, stop) sending the effects of a pipelined agent to its own bucket
+     * @return the scope there was before
+     */
+    public PipelineSegment.AgentScope enter(PipelineSegment.AgentScope scope){
+        PipelineSegment.AgentScope outer = this.scope;
+        this.scope = scope;
+        return outer;
+    }
+
+    /**
+     * if this thread is running the pipelined agent, add the effect to its bucket
+     * @return false if the effect is not for the agent being run and needs buffering instead
+     */
+    public boolean addToScope(Effect e, int agentId){
+        PipelineSegment.AgentScope current = scope;
+        if(current == null || current.agent != agentId)
+            return false;
+        current.effects.add(e);
+        return true;
+    }
+
+    /**
+     * if this thread is running the pipelined agent, add the encoded inventory operation to its bucket
+     * @return false if the operation is not for the agent being run and needs buffering instead
+     */
+    public boolean addToScope(int agentId, int code, float amount, int priority){
+        PipelineSegment.AgentScope current = scope;
+        if(current == null || current.agent != agentId)
+            return false;
+        current.effects.add(code, amount, priority, current.inventory, current.coalescing);
+        return true;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import com.google.common.base.Throwables;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Resolves the effects of a range of agents. The range is split in half, forking the right half, only while it's
+ * larger than the grain and the pool doesn't already have enough queued work to keep everybody busy; what's left is
+ * done sequentially, agent after agent. This way the number of tasks depends on the number of cores (and on how
+ * uneven the work is), not on the number of agents.
+ */
+final class ResolveEffects extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * stop splitting when this many tasks are already queued and not yet stolen
+     */
+    private static final int MAX_SURPLUS = 3;
+
+    /**
+     * how many leaves per core to aim for when choosing the grain
+     */
+    private static final int LEAVES_PER_THREAD = 8;
+
+    private final PendingEffects pendingEffects;
+
+    private final int from;
+
+    private final int to;
+
+    private final int grain;
+
+    private final boolean stable;
+
+    private final EffectJournal journal;
+
+    private final RunningTotals totals;
+
+    /**
+     * the previous sibling forked by the same parent, so that forked halves can be joined in reverse order without
+     * keeping a collection around
+     */
+    private final ResolveEffects next;
+
+    private ResolveEffects(PendingEffects pendingEffects, int from, int to, int grain, boolean stable,
+                           EffectJournal journal, RunningTotals totals, ResolveEffects next) {
+        this.pendingEffects = pendingEffects;
+        this.from = from;
+        this.to = to;
+        this.grain = grain;
+        this.stable = stable;
+        this.journal = journal;
+        this.totals = totals;
+        this.next = next;
+    }
+
+    /**
+     * the root task resolving all the pending effects
+     * @param pendingEffects the effects
+     * @param parallelism how many threads will be working on it
+     * @param stable true if effects with the same priority must keep their registration order
+     * @param journal where resolved inventory operations are recorded; null if nothing is
+     * @param totals the running totals resolved inventory operations update; null if there are none
+     */
+    public static ResolveEffects all(PendingEffects pendingEffects, int parallelism, boolean stable,
+                                     EffectJournal journal, RunningTotals totals){
+        int agents = pendingEffects.agents();
+        int grain = Math.max(1, agents / (parallelism * LEAVES_PER_THREAD));
+        return new ResolveEffects(pendingEffects, 0, agents, grain, stable, journal, totals, null);
+    }
+
+    @Override
+    protected void compute() {
+        int low = from;
+        int high = to;
+        ResolveEffects forked = null;
+        while(high - low > grain && getSurplusQueuedTaskCount() <= MAX_SURPLUS) {
+            int middle = (low + high) >>> 1;
+            forked = new ResolveEffects(pendingEffects, middle, high, grain, stable, journal, totals, forked);
+            forked.fork();
+            high = middle;
+        }
+
+        //an agent failing doesn't stop the others: remember the first failure and rethrow it once all is done
+        Throwable failure = null;
+        for(int i=low; i<high; i++) {
+            try {
+                pendingEffects.activeBucket(i).resolve(stable, pendingEffects.activeAgent(i), journal, totals);
+            }
+            catch (Throwable t) {
+                if(failure == null)
+                    failure = t;
+            }
+        }
+
+        //join the halves in reverse order of forking, doing them here if nobody stole them. Every half is waited
+        //for, so nothing is still resolving when the buckets are cleared
+        while(forked != null) {
+            if(forked.tryUnfork()) {
+                try {
+                    forked.compute();
+                }
+                catch (Throwable t) {
+                    if(failure == null)
+                        failure = t;
+                }
+            }
+            else {
+                forked.quietlyJoin();
+                if(failure == null)
+                    failure = forked.getException();
+            }
+            forked = forked.next;
+        }
+        if(failure != null)
+            throw Throwables.propagate(failure);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.GoodType;
+
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Sum and sum of squares of every good across the registered inventories, updated by whoever changes an inventory
+ * through the schedule (encoded inventory operations and transfers) so that reading them costs nothing. The adders
+ * are striped: pool threads updating at the same time don't fight over one number. <br>
+ * Changes made by Effect objects or directly on the inventories are not seen; seeding again (see
+ * ScheduleServer.setTrackingTotals) brings the totals back in line.
+ */
+final class RunningTotals {
+
+    private static final GoodType[] GOODS = GoodType.values();
+
+    private final DoubleAdder[] sums = new DoubleAdder[GOODS.length];
+
+    private final DoubleAdder[] squares = new DoubleAdder[GOODS.length];
+
+    /**
+     * how many inventories are counted. Only the dispatch thread writes it
+     */
+    private volatile long count = 0;
+
+    RunningTotals() {
+        for(int good=0; good<GOODS.length; good++) {
+            sums[good] = new DoubleAdder();
+            squares[good] = new DoubleAdder();
+        }
+    }
+
+    /**
+     * start from a full reduction of one good
+     */
+    void seed(InventoryAggregates aggregates){
+        int good = aggregates.getGood().ordinal();
+        count = aggregates.getCount();
+        sums[good].reset();
+        squares[good].reset();
+        if(count > 0) {
+            sums[good].add(aggregates.getSum());
+            squares[good].add(aggregates.getVariance() * count + aggregates.getSum() * aggregates.getMean());
+        }
+    }
+
+    /**
+     * one more inventory, holding this much of the good. Call for each good, then countInventory once
+     */
+    void add(int good, float amount){
+        sums[good].add(amount);
+        squares[good].add((double) amount * amount);
+    }
+
+    void countInventory(){
+        count++;
+    }
+
+    /**
+     * an inventory went from holding before to holding after. Any thread
+     */
+    void change(int good, float before, float after){
+        if(before == after)
+            return;
+        sums[good].add((double) after - before);
+        squares[good].add((double) after * after - (double) before * before);
+    }
+
+    InventoryAggregates read(GoodType good){
+        long inventories = count;
+        double sum = sums[good.ordinal()].sum();
+        if(inventories == 0)
+            return new InventoryAggregates(good, 0, sum, Double.NaN, Double.NaN, Double.NaN, Double.NaN, 0, 0,
+                                           new long[0]);
+        double mean = sum / inventories;
+        double variance = Math.max(0, squares[good.ordinal()].sum() / inventories - mean * mean);
+        return new InventoryAggregates(good, inventories, sum, mean, variance, Double.NaN, Double.NaN, 0, 0,
+                                       new long[0]);
+    }
+}
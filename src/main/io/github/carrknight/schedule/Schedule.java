@@ -1,5 +1,9 @@
 package io.github.carrknight.schedule;
 
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.RecursiveAction;
 
 /**
@@ -16,23 +20,130 @@ public interface Schedule {
      */
     public void registerEffect(Effect e,Agent a);
 
+    /**
+     * Add a new "effect" to be resolved as soon as possible
+     * @param e the effect to resolve
+     * @param agentId the id, as returned by registerAgent, of the agent whose effect we are dealing with
+     */
+    public void registerEffect(Effect e,int agentId);
+
+    /**
+     * Add a change to an agent's inventory to be resolved as soon as possible, like an effect calling the inventory
+     * would but without creating one
+     * @param agentId the id of an agent registered with its inventory
+     * @param op what to do to the inventory
+     * @param type the good affected
+     * @param amount how much
+     * @param priority the priority of the change, as for effects
+     */
+    public void registerInventoryEffect(int agentId, InventoryOp op, GoodType type, float amount, int priority);
+
+    /**
+     * Tell the schedule about an agent and get back its id. Ids are dense, starting from 0
+     * @param agent the agent to register
+     * @return the id of the agent
+     */
+    public int registerAgent(Agent agent);
+
+    /**
+     * Tell the schedule about an agent and the inventory it owns and get back its id. Only agents with an inventory
+     * can be part of a transfer
+     * @param agent the agent to register
+     * @param inventory the goods the agent owns
+     * @return the id of the agent
+     */
+    public int registerAgent(Agent agent, Owner inventory);
+
+    /**
+     * Move goods between the inventories of two agents. Transfers are applied, without locks, at the end of the phase
+     * before the effects
+     * @param sender the id of the agent giving the goods
+     * @param receiver the id of the agent receiving the goods
+     * @param type the good moved
+     * @param amount how much, not negative
+     */
+    public void transfer(int sender, int receiver, GoodType type, float amount);
+
     /**
      * Add a new recurring action to  be resolved at the same phase everyday
      * @param phase the phase at which point the action should be resolved
      * @param action the action to resolve
      */
-    public void registerRecurringAction(DAY_PHASES phase, RecursiveAction action);
+    public void registerRecurringAction(Phase phase, RecurringAction action);
+
+    /**
+     * Add a new recurring action to be resolved at the same phase everyday, as part of a named group and only once
+     * all the actions of the groups it waits for are done
+     * @param phase the phase at which point the action should be resolved
+     * @param group the group the action belongs to; can be null
+     * @param action the action to resolve
+     * @param after the groups to wait for
+     */
+    public void registerRecurringAction(Phase phase, String group, RecurringAction action, String... after);
+
+    /**
+     * Add a new recurring action to be resolved at the same phase everyday, only once the other actions it waits for
+     * are done
+     * @param phase the phase at which point the action should be resolved
+     * @param action the action to resolve
+     * @param after the actions, registered for the same phase, to wait for
+     */
+    public void registerRecurringAction(Phase phase, RecurringAction action, RecurringAction... after);
+
+    /**
+     * Add a new recurring action that only reads and changes the state of its own agent
+     * @param phase the phase at which point the action should be resolved
+     * @param agentId the id of the agent the action belongs to
+     * @param action the action to resolve
+     */
+    public void registerAgentAction(Phase phase, int agentId, RecurringAction action);
+
+    /**
+     * Add a new recurring action to  be resolved at the same phase everyday. The action is reinitialized before
+     * each run, so it must not be forked or joined by anybody else
+     * @param phase the phase at which point the action should be resolved
+     * @param action the action to resolve
+     */
+    public void registerRecurringAction(Phase phase, RecursiveAction action);
 
     /**
      * Go through all the phases of a day and perform all its actions and effects. This method waits until the tasks are complete
      */
     public void completeADay();
 
+    /**
+     * Complete this many days in a row. This method waits until they are all done
+     * @param days how many days to complete
+     */
+    public void completeDays(int days);
+
+    /**
+     * Start going through all the phases of a day, without waiting for them to complete
+     * @return a future completed with the number of days passed when the day is over, or completed exceptionally if
+     * anything failed
+     */
+    public CompletableFuture<Integer> completeADayAsync();
+
+    /**
+     * Start completing this many days in a row, without waiting for them
+     * @param days how many days to complete
+     * @return a future completed with the number of days passed when the days are over, or completed exceptionally if
+     * anything failed
+     */
+    public CompletableFuture<Integer> completeDaysAsync(int days);
+
     /**
      * Skip arbitrarily to this phase and complete it. Useful mostly for testing and debugging.
      * @param phase phase to complete
      */
-    public void completeAnArbitraryPhase(DAY_PHASES phase) throws InterruptedException;
+    public void completeAnArbitraryPhase(Phase phase) throws InterruptedException;
+
+    /**
+     * Skip arbitrarily to this phase and start completing it, without waiting
+     * @param phase phase to complete
+     * @return a future completed when the phase is over, or completed exceptionally if anything failed
+     */
+    public CompletableFuture<Void> completeAnArbitraryPhaseAsync(Phase phase);
 
     /**
      * how many days have passed?
@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A listener keeping running totals of every phase report, per phase, and the length of the last day. <br>
+ * Totals are striped counters so they can be read from any thread (a monitor, a UI) while the schedule runs without
+ * slowing it down.
+ */
+public class ScheduleMetrics implements ScheduleListener {
+
+    private final Map<Phase,Totals> totals = new ConcurrentHashMap<>();
+
+    /**
+     * wall time of the phases of the day in progress. Striped too, since the same listener may be attached to many
+     * schedules, each calling from its own dispatch thread
+     */
+    private final LongAdder currentDayNanos = new LongAdder();
+
+    private volatile long lastDayNanos = 0;
+
+    @Override
+    public void phaseCompleted(PhaseReport report) {
+        Totals phase = totalsOf(report.getPhase());
+        phase.runs.increment();
+        phase.actionNanos.add(report.getActionNanos());
+        phase.effectNanos.add(report.getEffectNanos());
+        phase.handoffNanos.add(report.getHandoffNanos());
+        phase.actions.add(report.getActions());
+        phase.agentsWithEffects.add(report.getAgentsWithEffects());
+        phase.effects.add(report.getEffects());
+        phase.registrations.add(report.getRegistrations());
+        currentDayNanos.add(report.getActionNanos() + report.getEffectNanos() + report.getHandoffNanos());
+    }
+
+    @Override
+    public void dayCompleted(int day) {
+        lastDayNanos = currentDayNanos.sumThenReset();
+    }
+
+    /**
+     * how many times the phase was completed
+     */
+    public long getRuns(Phase phase) {
+        return totalsOf(phase).runs.sum();
+    }
+
+    public long getActionNanos(Phase phase) {
+        return totalsOf(phase).actionNanos.sum();
+    }
+
+    public long getEffectNanos(Phase phase) {
+        return totalsOf(phase).effectNanos.sum();
+    }
+
+    public long getHandoffNanos(Phase phase) {
+        return totalsOf(phase).handoffNanos.sum();
+    }
+
+    public long getActions(Phase phase) {
+        return totalsOf(phase).actions.sum();
+    }
+
+    public long getAgentsWithEffects(Phase phase) {
+        return totalsOf(phase).agentsWithEffects.sum();
+    }
+
+    public long getEffects(Phase phase) {
+        return totalsOf(phase).effects.sum();
+    }
+
+    public long getRegistrations(Phase phase) {
+        return totalsOf(phase).registrations.sum();
+    }
+
+    /**
+     * wall time of the last complete day, summing all its phases
+     */
+    public long getLastDayNanos() {
+        return lastDayNanos;
+    }
+
+    private Totals totalsOf(Phase phase){
+        return totals.computeIfAbsent(phase, p -> new Totals());
+    }
+
+    private static class Totals {
+
+        private final LongAdder runs = new LongAdder();
+
+        private final LongAdder actionNanos = new LongAdder();
+
+        private final LongAdder effectNanos = new LongAdder();
+
+        private final LongAdder handoffNanos = new LongAdder();
+
+        private final LongAdder actions = new LongAdder();
+
+        private final LongAdder agentsWithEffects = new LongAdder();
+
+        private final LongAdder effects = new LongAdder();
+
+        private final LongAdder registrations = new LongAdder();
+    }
+}
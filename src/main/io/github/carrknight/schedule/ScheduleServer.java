@@ -24,84 +24,274 @@
 
 package io.github.carrknight.schedule;
 
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
+import com.google.common.base.Throwables;
+import io.github.carrknight.zeroknowledge.ConcurrentInventory;
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Owner;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 /**
- * A simple implementation of an independently threaded schedule. The independent dispatch thread deals with registering
- * effects and actions one at a time to avoid using locks. It is, in a way, a crude reimplementation of channel-based
- * multithreading that is at the basis of go. A language I hope to port this code to at some point.
+ * A simple implementation of an independently threaded schedule. The dispatch thread deals with the phase
+ * commands one at a time to avoid using locks. It is, in a way, a crude reimplementation of channel-based
+ * multithreading that is at the basis of go. A language I hope to port this code to at some point. <br>
+ * The dispatch thread is not a thread of its own but whichever thread of the pool is serving the channel at the
+ * moment, so many schedules can share the same pool without piling up threads. <br>
+ * Effects and actions are not sent through the channel: each worker thread of the pool appends them to its own
+ * buffer and the dispatch thread merges all the buffers in bulk at the phase barriers. Registrations coming from any
+ * other thread go through a lock-free queue merged at the same time. When sharing a pool, only register with a
+ * schedule from its own actions and effects or from outside the pool.
  * Created by carrknight on 7/30/14.
  */
-public class ScheduleServer implements Schedule {
+public class ScheduleServer implements Schedule, AutoCloseable {
 
     /**
-     * this thread keeps listening for new actions/effects/commands and deal with them one at a time
+     * here we receive and store the new tasks/messages/commands and wait for the dispatch thread to deal with them
      */
-    private final Thread dispatch;
+    private final DispatchChannel channel;
 
     /**
-     * here we receive and store the new tasks/messages/commands and wait for the dispatch thread to deal with them
+     * the registration buffer of each worker thread of the pool
+     */
+    private final ThreadLocal<RegistrationBuffer> workerBuffer;
+
+    /**
+     * the buffer of every worker thread, so that the dispatch thread can drain them at the barrier. Buffers of
+     * threads the pool has retired are dropped once drained
      */
-    private final BlockingQueue<Runnable> channel;
+    private final Queue<RegistrationBuffer> allWorkerBuffers;
 
     /**
-     * a map of all recursive actions to take
+     * registrations from threads that are not workers of this schedule's pool; these can come at any time
      */
-    private final Multimap<DAY_PHASES,RecursiveAction> actions;
+    private final Queue<Runnable> externalRegistrations;
 
     /**
-     * a map of all the effects each agent need to resolve
+     * the phases of a day, in order
      */
-    private final ListMultimap<Agent,Effect> pendingEffects;
+    private final Phase[] phases;
 
-    private int day = 0;
+    /**
+     * for each phase, the reusable tasks running its recurring actions. Never changes after construction so
+     * anybody can read it
+     */
+    private final Map<Phase,PhaseActions> actions;
 
-    private boolean active = true;
+    /**
+     * all the effects each agent need to resolve, bucketed by agent id
+     */
+    private final PendingEffects pendingEffects;
+
+    /**
+     * all the transfers between agents waiting for the next barrier
+     */
+    private final PendingTransfers pendingTransfers;
+
+    /**
+     * the next dense id to give out to an agent
+     */
+    private final AtomicInteger nextAgentId = new AtomicInteger(0);
 
     /**
-     * the workhorse of the schedule. Runs all the actions
+     * the agents, indexed by their id. Only the dispatch thread touches it
+     */
+    private Agent[] agents = new Agent[16];
+
+    /**
+     * from registered agent to its id, so registering twice gives the same id and effects can be registered by agent
+     * object. Any thread, synchronizing on the map
+     */
+    private final Map<Agent,Integer> agentIds = new IdentityHashMap<>();
+
+    /**
+     * negative ids of the agents that were never registered but have effects waiting, registered by agent object.
+     * Forgotten as soon as the effects are resolved, so short-lived agents leave nothing behind. These agents are
+     * not started or turned off. Only the dispatch thread touches it
+     */
+    private final Map<Agent,Integer> unregisteredIds = new IdentityHashMap<>();
+
+    /**
+     * the inventory of each agent, indexed by id; null for agents registered without one. Only the dispatch thread
+     * touches it
+     */
+    private Owner[] inventories = new Owner[16];
+
+    /**
+     * the inventories that are concurrent, to snapshot at the start of each phase. Dispatch thread only
+     */
+    private ConcurrentInventory[] concurrentInventories = new ConcurrentInventory[16];
+
+    private int concurrentInventoryCount = 0;
+
+    /**
+     * how many of those are read through their snapshot; pipelining is off while there is any
+     */
+    private int snapshotReadCount = 0;
+
+    /**
+     * written by the dispatch thread, read by anybody
+     */
+    private volatile int day = 0;
+
+    /**
+     * agents with id below this have been started. Dispatch thread only
+     */
+    private int startedAgents = 0;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * told about each phase as it completes; when empty nothing gets measured
+     */
+    private final List<ScheduleListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * counts of the last phase. Dispatch thread only
+     */
+    private int lastActions;
+
+    private int lastAgentsWithEffects;
+
+    private int lastEffects;
+
+    /**
+     * when true effects of the same agent with the same priority run in registration order
+     */
+    private volatile boolean stableEffectOrdering = false;
+
+    /**
+     * when true encoded inventory deltas of the same agent, good and priority are summed before the barrier
+     */
+    private volatile boolean coalescingInventoryEffects = true;
+
+    /**
+     * when true runs of phases with only agent actions go agent by agent rather than phase by phase
+     */
+    private volatile boolean pipelined = false;
+
+    /**
+     * the pipelined run starting at each phase, if any, once indexed. Dispatch thread only
+     */
+    private final PipelineSegment[] segments;
+
+    /**
+     * where each indexed run ends (exclusive)
+     */
+    private final int[] segmentEnds;
+
+    /**
+     * writes checkpoints, when asked to. Only the dispatch thread uses it
+     */
+    private CheckpointWriter checkpoints;
+
+    /**
+     * records the resolved inventory changes, when asked to. Pool threads record, only the dispatch thread flushes
+     */
+    private EffectJournal journal;
+
+    /**
+     * totals of every good kept up to date as inventory operations and transfers resolve, when asked to
+     */
+    private volatile RunningTotals totals;
+
+    /**
+     * the phase the day loop starts from: 0, unless the last day stopped at a failure. Dispatch thread only
+     */
+    private int resumeAt = 0;
+
+    /**
+     * the index of the phase running now, for the journal. Dispatch thread only
+     */
+    private int journalPhase = 0;
+
+    /**
+     * the workhorse of the schedule. Runs all the actions, the effects and the dispatch channel
      */
     private final ForkJoinPool threadPool;
 
+    /**
+     * true if the pool was created by (and is to be shut down with) this schedule
+     */
+    private final boolean ownsThreadPool;
+
 
 
     public ScheduleServer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
 
-        //create the channel holding the commands
-        channel = new LinkedBlockingQueue<>();
+    /**
+     * @param parallelism how many threads the pool running actions and effects should use
+     */
+    public ScheduleServer(int parallelism) {
+        this(new ForkJoinPool(parallelism), true, DAY_PHASES.values());
+    }
 
-        //create the thread unsafe lists
-        actions = Multimaps.newListMultimap(new EnumMap<>(DAY_PHASES.class),
-                LinkedList::new
-        );
+    /**
+     * a schedule running on a pool shared with others. Closing the schedule leaves the pool alone
+     * @param threadPool the pool running actions, effects and the dispatch channel
+     */
+    public ScheduleServer(ForkJoinPool threadPool) {
+        this(threadPool, false, DAY_PHASES.values());
+    }
 
-        //create map of effects
-        pendingEffects = Multimaps.newListMultimap(new HashMap<>(),
-                LinkedList::new
-        );
+    /**
+     * a schedule whose days are made of these phases instead of DAY_PHASES
+     * @param parallelism how many threads the pool running actions and effects should use
+     * @param phases the phases of a day, in order. At least one, no repetitions
+     */
+    public ScheduleServer(int parallelism, Phase... phases) {
+        this(new ForkJoinPool(parallelism), true, phases);
+    }
 
+    /**
+     * a schedule whose days are made of these phases instead of DAY_PHASES, running on a shared pool
+     * @param threadPool the pool running actions, effects and the dispatch channel
+     * @param phases the phases of a day, in order. At least one, no repetitions
+     */
+    public ScheduleServer(ForkJoinPool threadPool, Phase... phases) {
+        this(threadPool, false, phases);
+    }
 
-        //now create and start the dispatch thread
-        //create a simple thread
-        dispatch = new Thread(() -> {
-            //very simple runnable: keep grabbing commands from the channel and execute them
-            try {
-                while(active)
-                {
-                    channel.take().run();
-                }
-            } catch (InterruptedException e) {/*end of the game*/}
-        });
-        dispatch.setDaemon(true); //doesn't stop the program from quitting
-        dispatch.start();
+    private ScheduleServer(ForkJoinPool threadPool, boolean ownsThreadPool, Phase[] phases) {
+
+        //check the phases before anything else
+        if(phases.length == 0)
+            throw new IllegalArgumentException("a day needs at least one phase");
+        this.phases = phases.clone();
+        actions = new IdentityHashMap<>();
+        for(Phase phase : this.phases)
+            if(actions.put(phase, new PhaseActions()) != null)
+                throw new IllegalArgumentException("phase " + phase.name() + " is listed twice");
+        segments = new PipelineSegment[this.phases.length];
+        segmentEnds = new int[this.phases.length];
 
         //create the workhorse
-        threadPool = new ForkJoinPool();
+        this.threadPool = threadPool;
+        this.ownsThreadPool = ownsThreadPool;
+
+        //create the channel holding the commands
+        channel = new DispatchChannel(threadPool);
+
+        //create the registration buffers
+        allWorkerBuffers = new ConcurrentLinkedQueue<>();
+        workerBuffer = ThreadLocal.withInitial(() -> {
+            RegistrationBuffer buffer = new RegistrationBuffer();
+            allWorkerBuffers.add(buffer);
+            return buffer;
+        });
+        externalRegistrations = new ConcurrentLinkedQueue<>();
+
+        //create the effect buckets
+        pendingEffects = new PendingEffects();
+        pendingTransfers = new PendingTransfers();
 
     }
 
@@ -114,9 +304,182 @@ public class ScheduleServer implements Schedule {
     @Override
     public void registerEffect(Effect e, Agent a) {
 
-        //tell the dispatch to add it to the masterlist
-        channel.offer(() -> pendingEffects.put(a,e));
+        //buffer it until the next barrier
+        if(isOwnWorker(Thread.currentThread()))
+            workerBuffer.get().addEffect(e, a);
+        else
+            externalRegistrations.offer(() -> pendingEffects.add(idOf(a),e));
+
+    }
 
+    /**
+     * Add a new "effect" to be resolved as soon as possible. Faster than registering by agent object since no lookup
+     * is needed
+     *
+     * @param e       the effect to resolve
+     * @param agentId the id, as returned by registerAgent, of the agent whose effect we are dealing with
+     */
+    @Override
+    public void registerEffect(Effect e, int agentId) {
+        if(agentId < 0 || agentId >= nextAgentId.get())
+            throw new IllegalArgumentException("unknown agent id " + agentId);
+
+        //buffer it until the next barrier, unless it's for the pipelined agent this thread is running
+        if(isOwnWorker(Thread.currentThread())) {
+            RegistrationBuffer buffer = workerBuffer.get();
+            if(!buffer.addToScope(e, agentId))
+                buffer.addEffect(e, agentId);
+        }
+        else
+            externalRegistrations.offer(() -> pendingEffects.add(agentId,e));
+    }
+
+    /**
+     * Tell the schedule about an agent and get back its id. Ids are dense: they start at 0 and grow by one with each
+     * new agent. Registering an agent again only returns the id it already has.
+     *
+     * @param agent the agent
+     * @return the agent's id
+     */
+    @Override
+    public int registerAgent(Agent agent) {
+        return registerAgent(agent, null);
+    }
+
+    /**
+     * Tell the schedule about an agent and the inventory it owns, and get back its id. Only agents registered with
+     * an inventory can be part of a transfer. Registering an agent again only returns the id it already has; the
+     * inventory is ignored
+     *
+     * @param agent     the agent
+     * @param inventory the goods the agent owns; can be null
+     * @return the agent's id
+     */
+    @Override
+    public int registerAgent(Agent agent, Owner inventory) {
+        final int id;
+        synchronized (agentIds) {
+            Integer known = agentIds.get(agent);
+            if(known != null)
+                return known;
+            id = nextAgentId.getAndIncrement();
+            agentIds.put(agent, id);
+        }
+        if(isOwnWorker(Thread.currentThread()))
+            workerBuffer.get().addAgent(agent, id, inventory);
+        else
+            externalRegistrations.offer(() -> recordAgent(agent, id, inventory));
+        return id;
+    }
+
+    /**
+     * store the agent and its inventory under its id. Dispatch thread only
+     */
+    void recordAgent(Agent agent, int id, Owner inventory){
+        if(id >= agents.length)
+            agents = Arrays.copyOf(agents, Math.max(id + 1, agents.length * 2));
+        agents[id] = agent;
+        if(inventory != null) {
+            if(id >= inventories.length)
+                inventories = Arrays.copyOf(inventories, Math.max(id + 1, inventories.length * 2));
+            inventories[id] = inventory;
+            RunningTotals running = totals;
+            if(running != null) {
+                for(GoodType good : GoodType.values())
+                    running.add(good.ordinal(), AggregateInventories.currentAmount(inventory, good));
+                running.countInventory();
+            }
+        }
+        if(inventory instanceof ConcurrentInventory) {
+            if(concurrentInventoryCount == concurrentInventories.length)
+                concurrentInventories = Arrays.copyOf(concurrentInventories, concurrentInventoryCount * 2);
+            concurrentInventories[concurrentInventoryCount++] = (ConcurrentInventory) inventory;
+            if(((ConcurrentInventory) inventory).getReadMode() == ConcurrentInventory.ReadMode.SNAPSHOT)
+                snapshotReadCount++;
+        }
+    }
+
+    /**
+     * the id of an agent; for agents never registered a negative id that only lasts until the effects are resolved.
+     * Dispatch thread only
+     */
+    int idOf(Agent agent){
+        Integer id;
+        synchronized (agentIds) {
+            id = agentIds.get(agent);
+        }
+        if(id == null) {
+            id = unregisteredIds.get(agent);
+            if(id == null) {
+                id = -1 - unregisteredIds.size();
+                unregisteredIds.put(agent, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * the inventory of the agent, null if it has none. Dispatch thread only
+     */
+    Owner inventoryOf(int agentId){
+        return agentId < inventories.length ? inventories[agentId] : null;
+    }
+
+    /**
+     * Add a change to the inventory of an agent, resolved at the next barrier in priority order with the agent's
+     * other effects. The same as registering an effect calling the inventory, but no object is created: the operation
+     * is written as a few primitives in a reused buffer and interpreted at the barrier.
+     *
+     * @param agentId  the id of an agent registered with an inventory
+     * @param op       what to do to the inventory
+     * @param type     the good affected
+     * @param amount   how much (ignored when resetting)
+     * @param priority the priority of the change, as for effects
+     */
+    @Override
+    public void registerInventoryEffect(int agentId, InventoryOp op, GoodType type, float amount, int priority) {
+        if(agentId < 0 || agentId >= nextAgentId.get())
+            throw new IllegalArgumentException("unknown agent id " + agentId);
+        final int code = InventoryOp.encode(op, type);
+
+        //buffer it until the next barrier, unless it's for the pipelined agent this thread is running
+        if(isOwnWorker(Thread.currentThread())) {
+            RegistrationBuffer buffer = workerBuffer.get();
+            if(!buffer.addToScope(agentId, code, amount, priority))
+                buffer.addInventoryEffect(agentId, code, amount, priority, coalescingInventoryEffects);
+        }
+        else
+            externalRegistrations.offer(() -> pendingEffects.add(agentId, code, amount, priority,
+                    inventoryOf(agentId)));
+    }
+
+    /**
+     * Move goods from one agent's inventory to another's. Transfers are collected and applied all together at the
+     * next barrier, before the effects of the phase: each agent gets a single net change per good and agents are
+     * updated in parallel without locks since no two threads ever touch the same inventory. <br>
+     * Nothing checks that the sender owns enough: like consume, the inventory decides what to do about it.
+     *
+     * @param sender   id of the agent giving the goods
+     * @param receiver id of the agent getting the goods
+     * @param type     the good moved
+     * @param amount   how much of it, not negative
+     */
+    @Override
+    public void transfer(int sender, int receiver, GoodType type, float amount) {
+        int registered = nextAgentId.get();
+        if(sender < 0 || sender >= registered)
+            throw new IllegalArgumentException("unknown agent id " + sender);
+        if(receiver < 0 || receiver >= registered)
+            throw new IllegalArgumentException("unknown agent id " + receiver);
+        if(!(amount >= 0))
+            throw new IllegalArgumentException("can't transfer " + amount + " " + type);
+        final int good = type.ordinal();
+
+        //buffer it until the next barrier
+        if(isOwnWorker(Thread.currentThread()))
+            workerBuffer.get().addTransfer(sender, receiver, good, amount);
+        else
+            externalRegistrations.offer(() -> pendingTransfers.add(sender, receiver, good, amount));
     }
 
     /**
@@ -126,87 +489,675 @@ public class ScheduleServer implements Schedule {
      * @param action the action to resolve
      */
     @Override
-    public void registerRecurringAction(DAY_PHASES phase, RecursiveAction action) {
-        //tell the dispatch to add it to the correct map
-        channel.offer(() -> actions.put(phase,action) );
+    public void registerRecurringAction(Phase phase, RecurringAction action) {
+        addRecurringAction(phase, action, null);
+    }
+
+    /**
+     * Add a new recurring action, part of a named group, that each day waits for all the actions of the other
+     * groups listed to be done before starting. Within the phase it starts as soon as they are, without waiting for
+     * any other action, so dependent steps no longer need a phase (and a barrier) each. Groups can be listed before
+     * anybody joins them; an empty group is done right away.
+     *
+     * @param phase  the phase at which point the action should be resolved
+     * @param group  the group this action belongs to; can be null
+     * @param action the action to resolve
+     * @param after  the groups to wait for
+     */
+    @Override
+    public void registerRecurringAction(Phase phase, String group, RecurringAction action, String... after) {
+        addRecurringAction(phase, action, new PhaseActions.Dependencies(group, after, new RecurringAction[0]));
+    }
+
+    /**
+     * Add a new recurring action that each day starts as soon as these other actions of the same phase are done.
+     * The actions waited for must be registered for the same phase, once, by the next barrier (the start or end of
+     * the next phase run): that barrier fails with an IllegalStateException otherwise, and the actions registered for
+     * the phase since the barrier before are dropped. The same goes for dependencies going in a circle.
+     *
+     * @param phase  the phase at which point the action should be resolved
+     * @param action the action to resolve
+     * @param after  the actions to wait for
+     */
+    @Override
+    public void registerRecurringAction(Phase phase, RecurringAction action, RecurringAction... after) {
+        addRecurringAction(phase, action, new PhaseActions.Dependencies(null, new String[0], after));
+    }
+
+    private void addRecurringAction(Phase phase, RecurringAction action, PhaseActions.Dependencies dependencies){
+        final PhaseActions todo = actionsOf(phase);
+        //buffer it until the next barrier
+        if(isOwnWorker(Thread.currentThread()))
+            workerBuffer.get().addAction(todo, action, dependencies);
+        else
+            externalRegistrations.offer(() -> todo.add(action, dependencies) );
+    }
+
+    /**
+     * Add a recurring action that only reads and changes the state of one agent (its own inventory and fields,
+     * effects for itself). Runs like any other action, but in pipelined mode it lets its agent go through many phases
+     * without waiting for the others.
+     *
+     * @param phase   the phase at which point the action should be resolved
+     * @param agentId the id of the agent the action belongs to
+     * @param action  the action to resolve
+     */
+    @Override
+    public void registerAgentAction(Phase phase, int agentId, RecurringAction action) {
+        if(agentId < 0 || agentId >= nextAgentId.get())
+            throw new IllegalArgumentException("unknown agent id " + agentId);
+        final PhaseActions todo = actionsOf(phase);
+        if(isOwnWorker(Thread.currentThread()))
+            workerBuffer.get().addAgentAction(todo, agentId, action);
+        else
+            externalRegistrations.offer(() -> todo.addAgentAction(agentId, action));
+    }
+
+    /**
+     * the registration buffer of the calling worker thread
+     */
+    RegistrationBuffer currentWorkerBuffer(){
+        return workerBuffer.get();
+    }
+
+    private PhaseActions actionsOf(Phase phase){
+        PhaseActions todo = actions.get(phase);
+        if(todo == null)
+            throw new IllegalArgumentException("phase " + phase.name() + " is not part of this schedule");
+        return todo;
+    }
+
+    /**
+     * the phases of a day, in the order they are completed
+     */
+    public List<Phase> getPhases(){
+        return Collections.unmodifiableList(Arrays.asList(phases));
+    }
+
+    /**
+     * true if the thread is a worker of this schedule's pool. Only these get a registration buffer of their own since
+     * they are guaranteed to be idle (as far as this schedule is concerned) whenever the dispatch thread drains
+     */
+    private boolean isOwnWorker(Thread thread){
+        return thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == threadPool;
+    }
+
+    /**
+     * merge everything registered since the last barrier into the actions and effects. Called by the dispatch thread
+     * only, when no phase is running
+     * @return how many registrations were merged
+     */
+    private int drainRegistrations(){
+        pendingEffects.setCoalescing(coalescingMode());
+        int drained = 0;
+        //agents first, so that effects registered by agent object find the id whoever registered the agent
+        for(RegistrationBuffer buffer : allWorkerBuffers)
+            drained += buffer.drainAgentsInto(this);
+        Runnable registration;
+        while((registration = externalRegistrations.poll()) != null) {
+            registration.run();
+            drained++;
+        }
+        for(RegistrationBuffer buffer : allWorkerBuffers)
+            drained += buffer.drainInto(this, pendingEffects, pendingTransfers);
+        //workers the pool retired while idle: their buffers are empty now and will stay so
+        allWorkerBuffers.removeIf(RegistrationBuffer::isOrphaned);
+        //dependencies are checked now, at the barrier after they were registered, not whenever their phase runs
+        IllegalStateException rejected = null;
+        for(Map.Entry<Phase,PhaseActions> phase : actions.entrySet()) {
+            try {
+                phase.getValue().link();
+            }
+            catch (IllegalStateException e) {
+                if(rejected == null)
+                    rejected = new IllegalStateException("the actions just registered for phase " +
+                            phase.getKey().name() + " were dropped: " + e.getMessage(), e);
+            }
+        }
+        if(rejected != null)
+            throw rejected;
+        return drained;
+    }
+
+    /**
+     * how encoded inventory deltas are summed right now
+     */
+    private int coalescingMode(){
+        return !coalescingInventoryEffects ? PendingEffects.NO_COALESCING :
+                stableEffectOrdering ? PendingEffects.COALESCE_ADJACENT : PendingEffects.COALESCE_ANY;
+    }
+
+    /**
+     * Add a new recurring action to  be resolved at the same phase everyday. The action is reinitialized before
+     * each run, so it must not be forked or joined by anybody else
+     *
+     * @param phase  the phase at which point the action should be resolved
+     * @param action the action to resolve
+     */
+    @Override
+    public void registerRecurringAction(Phase phase, RecursiveAction action) {
+        //a finished ForkJoinTask doesn't run again unless reinitialized
+        registerRecurringAction(phase, () -> {
+            action.reinitialize();
+            action.invoke();
+        });
 
     }
 
     /**
-     * Go through all the phases of a day and perform all its actions and effects
+     * Go through all the phases of a day and perform all its actions and effects. If a phase fails, calling this
+     * again finishes the same day from the phase after the failed one
      */
     @Override
     public void completeADay() {
-        //call each phase completion. This cannot be run by the dispatch thread obviously
+        completeDays(1);
+    }
+
+    /**
+     * Go through this many days. The whole loop runs inside the dispatch thread so the caller only waits once
+     *
+     * @param days how many days to complete
+     */
+    @Override
+    public void completeDays(int days) {
+        completeDays(days, days, null);
+    }
+
+    /**
+     * Go through this many days, coming back to the calling thread every checkpointInterval days to call the
+     * checkpoint. Within each batch of days the loop runs inside the dispatch thread, without any handoff between
+     * phases.
+     *
+     * @param days               how many days to complete
+     * @param checkpointInterval how many days to complete between checkpoints
+     * @param checkpoint         called by the calling thread with the current day after each batch. Can be null
+     */
+    public void completeDays(int days, int checkpointInterval, IntConsumer checkpoint) {
+        if(days < 0)
+            throw new IllegalArgumentException("can't complete " + days + " days");
+        if(checkpointInterval <= 0 && days > 0)
+            throw new IllegalArgumentException("checkpoint interval must be positive, not " + checkpointInterval);
+
+        int remaining = days;
+        while(remaining > 0) {
+            final int batch = Math.min(remaining, checkpointInterval);
+            awaitOrCancel(completeDaysAsync(batch));
+            remaining -= batch;
+            if(checkpoint != null)
+                checkpoint.accept(day);
+        }
+    }
+
+    /**
+     * Start going through all the phases of a day without waiting for them
+     *
+     * @return a future completed with the number of days passed once the day is over, or exceptionally if any action
+     * or effect failed
+     */
+    @Override
+    public CompletableFuture<Integer> completeADayAsync() {
+        return completeDaysAsync(1);
+    }
+
+    /**
+     * Start going through this many days without waiting for them. The whole loop runs inside the dispatch thread.
+     * If a phase fails the loop stops there; the next days asked for start with the phase after it, so the earlier
+     * phases of that day don't run twice
+     *
+     * Checkpoints due along the way are written in the background while the days go on; the loop stops at the end of
+     * the first day it finds one of them failed to be written, and the future waits for the last one to be on disk
+     *
+     * @param days how many days to complete
+     * @return a future completed with the number of days passed once the days are over and their checkpoints
+     * written, or exceptionally (and right away) if any action or effect failed or a checkpoint couldn't be written
+     */
+    @Override
+    public CompletableFuture<Integer> completeDaysAsync(int days) {
+        if(days < 0)
+            throw new IllegalArgumentException("can't complete " + days + " days");
+        final CompletableFuture<Integer> receipt = new CompletableFuture<>();
+        final boolean measuring = !listeners.isEmpty();
+        final long requested = measuring ? System.nanoTime() : 0;
+        //only touched by the dispatch thread, then read once the receipt is complete
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        sendCommand(receipt, () -> {
+            long phaseRequested = requested;
+            for(int i=0; i<days; i++) {
+                for (int phase = resumeAt; phase < phases.length; ) {
+                    int end = pipelined ? pipelineEnd(phase) : phase;
+                    int next = end - phase > 1 ? end : phase + 1;
+                    //a failing phase still completes everything else it had to do: don't run it again
+                    resumeAt = next;
+                    if(end - phase > 1)
+                        phaseRequested = runPipelined(phase, end, measuring, phaseRequested);
+                    else
+                        phaseRequested = runPhase(phases[phase], measuring, phaseRequested);
+                    phase = next;
+                }
+                resumeAt = 0;
+                day++;
+                if(checkpoints != null && checkpoints.isDue(day))
+                    writes.add(takeCheckpoint());
+                if(measuring)
+                    for(ScheduleListener listener : listeners)
+                        listener.dayCompleted(day - 1);
+                awaitFailedWrites(writes);
+            }
+            return day;
+        });
+        return receipt.thenCompose(passed -> {
+            if(writes.isEmpty())
+                return CompletableFuture.completedFuture(passed);
+            //one writing thread: once the last write is over, they all are
+            return writes.get(writes.size() - 1).handle((written, failure) -> {
+                awaitFailedWrites(writes);
+                return passed;
+            });
+        });
+    }
+
+    /**
+     * rethrow the failure of the earliest checkpoint write that failed already; forget the ones that are done
+     */
+    private static void awaitFailedWrites(List<CompletableFuture<Void>> writes){
+        for(Iterator<CompletableFuture<Void>> iterator = writes.iterator(); iterator.hasNext(); ) {
+            CompletableFuture<Void> write = iterator.next();
+            if(write.isCompletedExceptionally())
+                write.join();
+            if(write.isDone())
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Skip arbitrarily to this phase and start completing it without waiting
+     *
+     * @param phase phase to complete
+     * @return a future completed once the phase is over, or exceptionally if any action or effect failed
+     */
+    @Override
+    public CompletableFuture<Void> completeAnArbitraryPhaseAsync(Phase phase) {
+        actionsOf(phase); //fail now if the phase is unknown
+        final CompletableFuture<Void> receipt = new CompletableFuture<>();
+        final boolean measuring = !listeners.isEmpty();
+        final long requested = measuring ? System.nanoTime() : 0;
+        sendCommand(receipt, () -> {
+            runPhase(phase, measuring, requested);
+            return null;
+        });
+        return receipt;
+    }
+
+    /**
+     * give the dispatch thread something to do and have it complete the receipt with the result or the failure.
+     * Receipts are completed by the dispatch thread itself, so whatever is chained to them without an executor
+     * should be quick and must never wait for the schedule
+     */
+    private <T> void sendCommand(CompletableFuture<T> receipt, Callable<T> command){
+        if(closed.get()) {
+            receipt.completeExceptionally(new IllegalStateException("the schedule is closed"));
+            return;
+        }
+        sendCommandEvenIfClosed(receipt, command);
+    }
+
+    private <T> void sendCommandEvenIfClosed(CompletableFuture<T> receipt, Callable<T> command){
+        channel.offer(() -> {
+            T result;
+            try {
+                result = command.call();
+            }
+            catch (Throwable t) {
+                receipt.completeExceptionally(t);
+                return;
+            }
+            receipt.complete(result);
+        });
+    }
+
+    /**
+     * wait for the receipt of a command, rethrowing whatever went wrong while executing it
+     */
+    private <T> T await(CompletableFuture<T> receipt) throws InterruptedException {
+        //waiting for the dispatch thread from the dispatch thread would wait forever
+        if(channel.isServing())
+            throw new IllegalStateException("the dispatch thread can't wait for the schedule; use the async methods");
+        try {
+            return receipt.get();
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * like await, but for methods that can't throw InterruptedException
+     */
+    private <T> T awaitOrCancel(CompletableFuture<T> receipt) {
         try {
-            for (DAY_PHASES phase : DAY_PHASES.values())
-                completeAnArbitraryPhase(phase);
+            return await(receipt);
         }
         catch (InterruptedException e) {
-            e.printStackTrace();
-            System.err.println("interrupted");
-            System.exit(-1);
+            //the command keeps going in the background, but we can't wait for it anymore
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for the schedule at day " + day);
         }
-        day++;
     }
 
+    /**
+     * Turn off all the agents (in parallel) and stop accepting commands. Commands already sent are completed first.
+     * If the pool was created by this schedule it is shut down too. Waits for all of this to be done.
+     */
+    @Override
+    public void close() {
+        if(!closed.compareAndSet(false, true))
+            return;
+        final CompletableFuture<Void> receipt = new CompletableFuture<>();
+        sendCommandEvenIfClosed(receipt, () -> {
+            try {
+                drainRegistrations();
+                runOnPool(AgentLifecycle.turnOff(agents, 0, startedAgents));
+            }
+            finally {
+                try {
+                    if(checkpoints != null)
+                        checkpoints.close();
+                    if(journal != null)
+                        journal.close();
+                }
+                finally {
+                    if(ownsThreadPool)
+                        threadPool.shutdown();
+                }
+            }
+            return null;
+        });
+        //nothing to wait for if it's the dispatch thread closing
+        if(!channel.isServing())
+            awaitOrCancel(receipt);
+    }
+
+    public boolean isClosed(){
+        return closed.get();
+    }
 
-    private void completeAllActions(DAY_PHASES phase){
+    /**
+     * Start writing checkpoints to this file every so many days (when the day count is a multiple of it). Taking a
+     * checkpoint only stops the schedule for the time of copying the inventories in memory, in parallel; the copy is
+     * written to disk by a background thread. The file always holds the last complete checkpoint.
+     *
+     * @param file      where to write; null to stop checkpointing
+     * @param everyDays days between checkpoints; 0 to only checkpoint when asked to
+     */
+    public void setCheckpoints(Path file, int everyDays) {
+        if(everyDays < 0)
+            throw new IllegalArgumentException("can't checkpoint every " + everyDays + " days");
+        final CompletableFuture<Void> receipt = new CompletableFuture<>();
+        sendCommand(receipt, () -> {
+            if(checkpoints != null)
+                checkpoints.close();
+            checkpoints = file == null ? null : new CheckpointWriter(file, everyDays);
+            return null;
+        });
+        awaitOrCancel(receipt);
+    }
 
-        //make a copy of the actions needed so that we don't have to block the dispatch thread
-        final Collection<RecursiveAction> todo =  actions.get(phase);
-        if(todo.isEmpty())
-            return;
+    /**
+     * Start recording every inventory operation and transfer resolved from now on in this file (replacing it), so
+     * that JournalReplay can rebuild the inventories at any later day. Effect objects and changes made directly to
+     * the inventories are not recorded.
+     *
+     * @param file where to write; null to stop recording
+     * @throws IOException if the file can't be created
+     */
+    public void setJournal(Path file) throws IOException {
+        final EffectJournal next = file == null ? null : new EffectJournal(file);
+        final CompletableFuture<Void> receipt = new CompletableFuture<>();
+        sendCommand(receipt, () -> {
+            if(journal != null)
+                journal.close();
+            journal = next;
+            return null;
+        });
+        awaitOrCancel(receipt);
+    }
+
+    /**
+     * Compute total, mean, variance, min and max of a good over every registered inventory, as a parallel reduction
+     * on the schedule's pool. Called from an action it runs right away (and should only be called when nothing else
+     * in the phase changes that good). Called from anywhere else it is queued like any other command: it runs after
+     * every command already sent is done, whole batches of days included, and the caller waits until then.
+     */
+    public InventoryAggregates aggregate(GoodType type) {
+        return aggregate(type, 0, 0, 0);
+    }
+
+    /**
+     * Like aggregate(type), also counting how many inventories fall in each of the bins splitting [lowest,highest)
+     * in equal parts (holdings outside go to the first or last bin)
+     *
+     * @param bins how many bins; 0 for no histogram
+     */
+    public InventoryAggregates aggregate(GoodType type, float lowest, float highest, int bins) {
+        if(bins < 0 || (bins > 0 && !(highest > lowest)))
+            throw new IllegalArgumentException("can't make " + bins + " bins between " + lowest + " and " + highest);
+        if(isOwnWorker(Thread.currentThread()) || channel.isServing())
+            return computeAggregates(type, lowest, highest, bins);
+        final CompletableFuture<InventoryAggregates> receipt = new CompletableFuture<>();
+        sendCommand(receipt, () -> {
+            //count the inventories registered since the last phase too
+            drainRegistrations();
+            return computeAggregates(type, lowest, highest, bins);
+        });
+        return awaitOrCancel(receipt);
+    }
+
+    private InventoryAggregates computeAggregates(GoodType type, float lowest, float highest, int bins){
+        Owner[] registry = inventories;
+        AggregateInventories reduction =
+                new AggregateInventories(registry, type, lowest, highest, bins, 0, registry.length);
+        runOnPool(reduction);
+        return reduction.join().toAggregates(type, lowest, highest);
+    }
+
+    /**
+     * Start (or stop) keeping the total and the sum of squares of every good up to date as inventory operations and
+     * transfers resolve, so that tracked() answers in constant time. Starting takes a full aggregate of every good;
+     * starting again while tracking re-seeds the totals, which is needed after changing inventories in other ways
+     * (Effect objects or direct calls).
+     */
+    public void setTrackingTotals(boolean tracking) {
+        final CompletableFuture<Void> receipt = new CompletableFuture<>();
+        sendCommand(receipt, () -> {
+            if(tracking) {
+                RunningTotals running = new RunningTotals();
+                seedTotals(running);
+                totals = running;
+            }
+            else
+                totals = null;
+            return null;
+        });
+        awaitOrCancel(receipt);
+    }
+
+    private void seedTotals(RunningTotals running){
+        for(GoodType good : GoodType.values())
+            running.seed(computeAggregates(good, 0, 0, 0));
+    }
+
+    /**
+     * count, total, mean and variance of a good as tracked since setTrackingTotals(true); no min, max or histogram.
+     * Exact at the barriers, approximate while effects are resolving
+     */
+    public InventoryAggregates tracked(GoodType type) {
+        RunningTotals running = totals;
+        if(running == null)
+            throw new IllegalStateException("totals are not being tracked");
+        return running.read(type);
+    }
+
+    /**
+     * Take a checkpoint now, once the commands already sent are done, in the file given to setCheckpoints
+     *
+     * @return a future completed once the checkpoint is on disk
+     */
+    public CompletableFuture<Void> checkpoint() {
+        final CompletableFuture<CompletableFuture<Void>> receipt = new CompletableFuture<>();
+        sendCommand(receipt, () -> {
+            if(checkpoints == null)
+                throw new IllegalStateException("no checkpoint file set");
+            return takeCheckpoint();
+        });
+        return receipt.thenCompose(written -> written);
+    }
+
+    /**
+     * copy every inventory and hand the copy to the checkpoint writer. Dispatch thread only
+     */
+    private CompletableFuture<Void> takeCheckpoint(){
+        int registered = nextAgentId.get();
+        drainRegistrations();
+        CheckpointWriter.Capture capture = checkpoints.nextCapture(registered);
+        runOnPool(capture.fill(inventories));
+        return checkpoints.write(capture, day);
+    }
 
-        final RecursiveAction runPhase = new RecursiveAction() {
-            //this recursive action just calls all the other recursive actions!
-            @Override
-            protected void compute() {
-                invokeAll(todo);
+    /**
+     * Bring the schedule back to a checkpoint: the day count and the content of every inventory. The agents must
+     * have been registered again, in the same order and with their inventories, since agents themselves are not
+     * part of a checkpoint; they are started (if they weren't already) before their inventories are overwritten.
+     *
+     * @param file the checkpoint
+     * @throws IOException if the checkpoint can't be read
+     */
+    public void restore(Path file) throws IOException {
+        final CheckpointFile checkpoint = CheckpointFile.read(file);
+        final CompletableFuture<Void> receipt = new CompletableFuture<>();
+        sendCommand(receipt, () -> {
+            drainRegistrations();
+            startNewAgents();
+            //check them all first, so a checkpoint that doesn't fit leaves the schedule as it was
+            for(int agent=0; agent<checkpoint.getAgents(); agent++)
+                if(checkpoint.hasInventory(agent) && inventoryOf(agent) == null)
+                    throw new IllegalStateException("agent " + agent + " has no inventory to restore");
+            GoodType[] goods = GoodType.values();
+            for(int agent=0; agent<checkpoint.getAgents(); agent++) {
+                if(!checkpoint.hasInventory(agent))
+                    continue;
+                Owner inventory = inventoryOf(agent);
+                for(GoodType good : goods) {
+                    inventory.resetTo0(good);
+                    inventory.receiveOrProduce(good, checkpoint.get(agent, good));
+                }
             }
-        };
-        threadPool.invoke(runPhase); //invoke should join!
+            day = checkpoint.getDay();
+            resumeAt = 0;
+            if(totals != null)
+                seedTotals(totals);
+            return null;
+        });
+        awaitOrCancel(receipt);
+    }
 
+    /**
+     * start, in parallel, all the agents registered since the last time; keep going as long as starting agents
+     * registers new ones. Dispatch thread only
+     */
+    private void startNewAgents(){
+        int registered = nextAgentId.get();
+        while(startedAgents < registered) {
+            runOnPool(AgentLifecycle.start(agents, startedAgents, Math.min(registered, agents.length), this));
+            startedAgents = registered;
+            //starting agents usually means registering actions, effects and maybe more agents
+            drainRegistrations();
+            registered = nextAgentId.get();
+        }
+    }
 
+    /**
+     * run the task on the pool and wait for it. When called by the dispatch thread, which is a worker of the pool
+     * already, the task just runs in place
+     */
+    private void runOnPool(ForkJoinTask<?> task){
+        if(isOwnWorker(Thread.currentThread()))
+            task.invoke();
+        else
+            threadPool.invoke(task);
+    }
 
 
+    /**
+     * snapshot every concurrent inventory so that reads within the phase are consistent. Dispatch thread only
+     */
+    private void snapshotConcurrentInventories(){
+        if(concurrentInventoryCount > 0)
+            runOnPool(new SnapshotInventories(concurrentInventories, 0, concurrentInventoryCount));
     }
 
-    private void completeAllEffects() {
+    private void completeAllActions(PhaseActions todo){
 
-        if(pendingEffects.isEmpty())
+        //the dispatch thread is busy here, so nobody can add to the phase while it runs
+        lastActions = todo.size();
+        if(todo.isEmpty())
             return;
 
-        Collection<ForkJoinTask> receipts = new LinkedList<>();
+        //the same root task runs every day
+        todo.reinitialize();
+        runOnPool(todo); //invoke should join!
 
-        //submit all actions. For each agent they happen in sequence
-        for(Map.Entry<Agent,Collection<Effect>> effects : pendingEffects.asMap().entrySet() )
-        {
-            List<Effect> todo =(List)effects.getValue(); //the cast is always correct because it's a MultiMapList
-            final ForkJoinTask<?> receipt = threadPool.submit(() -> {
-                Collections.sort(todo);
-                for (Effect e : todo)
-                    e.run();
-            });
-            receipts.add(receipt);
-        }
+    }
 
-        //now wait for all of them to complete
-        try {
-            for (ForkJoinTask receipt : receipts)
-                receipt.get();
-            pendingEffects.clear();
+    private void completeAllEffects() {
+
+        completeAllTransfers();
+
+        lastAgentsWithEffects = pendingEffects.agents();
+        lastEffects = pendingEffects.effects();
+        if(pendingEffects.isEmpty())
+            return;
 
+        //one root task splitting the agents in chunks. For each agent the effects happen in sequence
+        try {
+            runOnPool(ResolveEffects.all(pendingEffects, threadPool.getParallelism(), stableEffectOrdering,
+                                         journal, totals));
         }
-        catch (Exception e){
-            e.printStackTrace();
-            System.err.println("interrupted");
-            System.exit(-1);
+        finally {
+            //even if some effect failed: ResolveEffects waited for all the others, and no effect should run twice
+            pendingEffects.clear();
+            unregisteredIds.clear();
+            flushJournal();
         }
-        //done
 
+    }
 
+    /**
+     * apply every pending transfer, grouped by agent so that each inventory is touched by one thread only
+     */
+    private void completeAllTransfers(){
+        if(pendingTransfers.isEmpty())
+            return;
+        try {
+            runOnPool(pendingTransfers.group(nextAgentId.get(), inventories, journal, totals));
+        }
+        finally {
+            pendingTransfers.clear();
+            flushJournal();
+        }
+    }
 
+    /**
+     * write to the journal, if any, what the pool resolved in the last stage. Dispatch thread only
+     */
+    private void flushJournal(){
+        if(journal == null)
+            return;
+        try {
+            journal.flush(day, journalPhase);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -216,28 +1167,198 @@ public class ScheduleServer implements Schedule {
      * @param phase phase to complete
      */
     @Override
-    public void completeAnArbitraryPhase(DAY_PHASES phase) throws InterruptedException {
+    public void completeAnArbitraryPhase(Phase phase) throws InterruptedException {
         //blocking till completion means this is not doable by dispatch thread
+        await(completeAnArbitraryPhaseAsync(phase));
+    }
 
+    /**
+     * do actions then effects of a phase. A phase with no actions and nothing pending is skipped altogether.
+     * Dispatch thread only
+     * @param measuring whether to time the phase and tell the listeners
+     * @param requested when the phase was asked for (only used when measuring)
+     * @return when the phase ended (only when measuring)
+     */
+    private long runPhase(Phase phase, boolean measuring, long requested){
+        int registrations = drainRegistrations();
+        startNewAgents();
+        final PhaseActions todo = actionsOf(phase);
+        journalPhase = indexOf(phase);
+        long actionNanos = 0;
+        long effectNanos = 0;
+        if(todo.isEmpty() && pendingEffects.isEmpty() && pendingTransfers.isEmpty()) {
+            //fast path: nothing can happen in this phase, so no snapshot and no second barrier either
+            lastActions = 0;
+            lastAgentsWithEffects = 0;
+            lastEffects = 0;
+        }
+        else {
+            snapshotConcurrentInventories();
+            long start = measuring ? System.nanoTime() : 0;
+            completeAllActions(todo); //notice that nothing is drained while the actions run
+            actionNanos = measuring ? System.nanoTime() - start : 0;
 
-        final Semaphore waitForCompletion = new Semaphore(0);
-        //two steps: do actions then do effects
-
-        channel.offer(() -> {
-            completeAllActions(phase); //notice that the dispatch thread will not update while it's completing actions
-            waitForCompletion.release();
-        });
-        //wait for completion before telling it to do effects (so that if effects are created by the actions then they are recorded)
-        waitForCompletion.acquire();
-        waitForCompletion.drainPermits(); // no more permits
-        //now do effects
-        channel.offer(() -> {
+            //now do effects, picking up the effects the actions just created
+            registrations += drainRegistrations();
+            start = measuring ? System.nanoTime() : 0;
             completeAllEffects();
-            waitForCompletion.release();
-        });
-        //wait again
-        waitForCompletion.acquire();
-        //done!
+            effectNanos = measuring ? System.nanoTime() - start : 0;
+        }
+        if(!measuring)
+            return 0;
+
+        long end = System.nanoTime();
+        PhaseReport report = new PhaseReport(day, phase, actionNanos, effectNanos,
+                end - requested - actionNanos - effectNanos, lastActions, lastAgentsWithEffects, lastEffects,
+                registrations, channel.backlog());
+        for (ScheduleListener listener : listeners)
+            listener.phaseCompleted(report);
+        return end;
+    }
+
+    /**
+     * the position of the phase in the day; -1 if it isn't one of the schedule's phases
+     */
+    private int indexOf(Phase phase){
+        for(int i=0; i<phases.length; i++)
+            if(phases[i] == phase)
+                return i;
+        return -1;
+    }
+
+    /**
+     * where the run of pipelinable phases starting here ends: phases that are not synchronizing and have only agent
+     * actions. No run at all while some inventory is read through snapshots: agents at different phases can't share
+     * a snapshot taken at the start of each. Dispatch thread only
+     */
+    private int pipelineEnd(int from){
+        if(snapshotReadCount > 0)
+            return from;
+        int end = from;
+        while(end < phases.length && !phases[end].isSynchronizing() && !actions.get(phases[end]).hasSharedActions())
+            end++;
+        return end;
+    }
+
+    /**
+     * go through phases [from,to) agent by agent, with a global barrier only at the start and at the end. Reports
+     * each phase with its agent actions; times and effects go to the last one. Dispatch thread only
+     * @return when the run ended (only when measuring)
+     */
+    private long runPipelined(int from, int to, boolean measuring, long requested){
+        int registrations = drainRegistrations();
+        startNewAgents();
+        //whatever was registered from outside since the last barrier
+        registrations += drainRegistrations();
+        //what is left over belongs to the phase before, as it would without pipelining
+        completeAllEffects();
+        journalPhase = from;
+        snapshotConcurrentInventories();
+
+        PipelineSegment segment = segments[from];
+        if(segment == null || segmentEnds[from] != to || segment.isStale()) {
+            PhaseActions[] run = new PhaseActions[to - from];
+            for(int i=from; i<to; i++)
+                run[i - from] = actions.get(phases[i]);
+            segment = new PipelineSegment(run);
+            segments[from] = segment;
+            segmentEnds[from] = to;
+        }
+        long start = measuring ? System.nanoTime() : 0;
+        runOnPool(segment.run(this, inventories, stableEffectOrdering, coalescingMode(), journal, totals));
+        long actionNanos = measuring ? System.nanoTime() - start : 0;
+
+        //what the agents resolved on their own, then effects for other agents and effects of effects
+        flushJournal();
+        journalPhase = to - 1;
+        registrations += drainRegistrations();
+        start = measuring ? System.nanoTime() : 0;
+        completeAllEffects();
+        if(!measuring)
+            return 0;
+
+        long end = System.nanoTime();
+        long effectNanos = end - start;
+        for(int i=from; i<to; i++) {
+            boolean last = i == to - 1;
+            PhaseReport report = last ?
+                    new PhaseReport(day, phases[i], actionNanos, effectNanos,
+                            end - requested - actionNanos - effectNanos, segment.actionsIn(i - from),
+                            lastAgentsWithEffects, lastEffects, registrations, channel.backlog()) :
+                    new PhaseReport(day, phases[i], 0, 0, 0, segment.actionsIn(i - from), 0, 0, 0,
+                            channel.backlog());
+            for (ScheduleListener listener : listeners)
+                listener.phaseCompleted(report);
+        }
+        return end;
+    }
+
+    /**
+     * start telling this listener about each phase and day completed. Measuring starts with the first listener
+     */
+    public void addListener(ScheduleListener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(ScheduleListener listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     * By default effects of the same agent with the same priority are resolved in no particular order. Set this to
+     * true to have them resolved in the order they were registered (for effects registered by the same thread). A bit
+     * slower for agents with many effects.
+     *
+     * @param stableEffectOrdering true to keep ties in registration order
+     */
+    public void setStableEffectOrdering(boolean stableEffectOrdering) {
+        this.stableEffectOrdering = stableEffectOrdering;
+    }
+
+    public boolean isStableEffectOrdering() {
+        return stableEffectOrdering;
+    }
+
+    /**
+     * By default encoded inventory deltas (receiving, producing and consuming) of the same agent, good and priority
+     * are summed as they are registered and merged at the barrier, so that only one net change per good is stored,
+     * sorted and applied. With stable effect ordering only deltas with nothing registered in between are summed.
+     * Turn this off if an inventory needs to see each change separately.
+     *
+     * @param coalescingInventoryEffects true to sum deltas
+     */
+    public void setCoalescingInventoryEffects(boolean coalescingInventoryEffects) {
+        this.coalescingInventoryEffects = coalescingInventoryEffects;
+    }
+
+    public boolean isCoalescingInventoryEffects() {
+        return coalescingInventoryEffects;
+    }
+
+    /**
+     * Off by default. When on, completing days lets each agent go through runs of consecutive phases on its own
+     * rather than waiting for everybody at every phase: the phases must not be synchronizing and must have only
+     * agent actions. Each agent runs its actions of a phase and then resolves the effects it registered (by id) for
+     * itself before moving to the next phase; effects for anybody else wait for the end of the run. <br>
+     * Arbitrary phases completed one at a time are never pipelined, and neither is anything while some agent has a
+     * ConcurrentInventory read in SNAPSHOT mode, since its snapshot must be taken at the start of every phase.
+     *
+     * @param pipelined true to pipeline
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * the pool running the schedule, for bulk work of its own (see InventoryKernels). Run from an action, such work
+     * shares the pool with the phase instead of competing with it
+     */
+    public ForkJoinPool getThreadPool() {
+        return threadPool;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
     }
 
     /**
@@ -0,0 +1,64 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.ConcurrentInventory;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Takes the snapshot of a range of concurrent inventories in parallel, splitting the range in halves down to a grain
+ */
+final class SnapshotInventories extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int GRAIN = 1024;
+
+    private final ConcurrentInventory[] inventories;
+
+    private final int from;
+
+    private final int to;
+
+    SnapshotInventories(ConcurrentInventory[] inventories, int from, int to) {
+        this.inventories = inventories;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if(to - from <= GRAIN) {
+            for(int i=from; i<to; i++)
+                inventories[i].snapshot();
+        }
+        else {
+            int middle = (from + to) >>> 1;
+            invokeAll(new SnapshotInventories(inventories, from, middle),
+                      new SnapshotInventories(inventories, middle, to));
+        }
+    }
+}
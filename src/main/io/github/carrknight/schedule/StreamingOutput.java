@@ -0,0 +1,262 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Owner;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a row (day, agent id, how much of each good) per call to a CSV file, optionally gzipped, without making the
+ * schedule wait for the disk. <br>
+ * Actions and effects append rows to columns owned by their own thread, so appending needs no lock. There are two
+ * sets of columns: when the flush phase ends the schedule switches to the other set and a background thread writes
+ * the full one while the next day goes on. The schedule waits only if, at the next switch, the previous set is still
+ * being written: the disk really is behind. <br>
+ * Rows of the same day come out in no particular order. Append only from the actions and effects of the schedule
+ * this output is attached to, and close it once the schedule is done.
+ */
+public class StreamingOutput implements ScheduleListener, AutoCloseable {
+
+    private static final GoodType[] GOODS = GoodType.values();
+
+    /**
+     * rows each thread's columns start with
+     */
+    private static final int INITIAL_ROWS = 1024;
+
+    private final ScheduleServer schedule;
+
+    private final Phase flushAfter;
+
+    private final OutputStream out;
+
+    private final ExecutorService io;
+
+    /**
+     * the columns of each thread that ever appended
+     */
+    private final Queue<ThreadColumns> allColumns = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<ThreadColumns> columns;
+
+    /**
+     * which of the two sets of columns the threads are appending to. Switched by the dispatch thread only
+     */
+    private volatile int generation = 0;
+
+    /**
+     * the background write of the other set, if any
+     */
+    private Future<?> flushing;
+
+    private final AtomicLong rowsWritten = new AtomicLong();
+
+    private final AtomicLong waits = new AtomicLong();
+
+    private boolean closed = false;
+
+    /**
+     * @param schedule   the schedule whose actions append the rows
+     * @param flushAfter the phase after which the day's rows are handed to the writer, typically DATA_AND_OUTPUT
+     * @param file       where to write; replaced if it exists
+     * @param gzip       true to compress the output
+     */
+    public StreamingOutput(ScheduleServer schedule, Phase flushAfter, Path file, boolean gzip) throws IOException {
+        this.schedule = schedule;
+        this.flushAfter = flushAfter;
+        OutputStream raw = Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        out = gzip ? new GZIPOutputStream(raw, 1 << 16) : new BufferedOutputStream(raw, 1 << 16);
+        StringBuilder header = new StringBuilder("day,agent");
+        for(GoodType good : GOODS)
+            header.append(',').append(good.name());
+        out.write(header.append('\n').toString().getBytes(StandardCharsets.US_ASCII));
+
+        io = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "output writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        columns = ThreadLocal.withInitial(() -> {
+            ThreadColumns mine = new ThreadColumns();
+            allColumns.add(mine);
+            return mine;
+        });
+        schedule.addListener(this);
+    }
+
+    /**
+     * add a row with how much the inventory owns of each good
+     */
+    public void append(int day, int agentId, Owner inventory){
+        columns.get().sets[generation].append(day, agentId, inventory);
+    }
+
+    @Override
+    public void phaseCompleted(PhaseReport report) {
+        if(report.getPhase() == flushAfter)
+            switchAndFlush();
+    }
+
+    /**
+     * wait for the previous write, if still going, then switch sets and write the full one in the background.
+     * Called by the dispatch thread between phases, when nobody is appending
+     */
+    private void switchAndFlush(){
+        awaitFlushing();
+        final int full = generation;
+        generation = 1 - full;
+        flushing = io.submit(() -> {
+            try {
+                for(ThreadColumns thread : allColumns)
+                    thread.sets[full].writeAndClear();
+                out.flush();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void awaitFlushing(){
+        Future<?> previous = flushing;
+        flushing = null;
+        if(previous == null)
+            return;
+        if(!previous.isDone())
+            waits.incrementAndGet();
+        try {
+            previous.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting for the output to be written");
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("writing the output failed", e.getCause());
+        }
+    }
+
+    /**
+     * write whatever is left and close the file. Call once the schedule is done
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        schedule.removeListener(this);
+        try {
+            switchAndFlush();
+            awaitFlushing();
+        }
+        finally {
+            io.shutdown();
+            out.close();
+        }
+    }
+
+    /**
+     * rows on their way to the disk so far
+     */
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    /**
+     * how many times the schedule had to wait for the disk
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * the two sets of columns of one thread
+     */
+    private final class ThreadColumns {
+
+        private final Rows[] sets = {new Rows(), new Rows()};
+    }
+
+    /**
+     * preallocated columns, growing when full
+     */
+    private final class Rows {
+
+        private int[] days = new int[INITIAL_ROWS];
+
+        private int[] agents = new int[INITIAL_ROWS];
+
+        private float[][] goods = new float[GOODS.length][INITIAL_ROWS];
+
+        private int size = 0;
+
+        private void append(int day, int agentId, Owner inventory){
+            if(size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                agents = Arrays.copyOf(agents, size * 2);
+                for(int i=0; i<goods.length; i++)
+                    goods[i] = Arrays.copyOf(goods[i], size * 2);
+            }
+            days[size] = day;
+            agents[size] = agentId;
+            for(int i=0; i<goods.length; i++)
+                goods[i][size] = inventory.hasHowMany(GOODS[i]);
+            size++;
+        }
+
+        private void writeAndClear() throws IOException {
+            StringBuilder text = new StringBuilder(64 * 1024);
+            for(int row=0; row<size; row++) {
+                text.append(days[row]).append(',').append(agents[row]);
+                for(float[] good : goods)
+                    text.append(',').append(good[row]);
+                text.append('\n');
+                if(text.length() > 60 * 1024) {
+                    out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+                    text.setLength(0);
+                }
+            }
+            out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+            rowsWritten.addAndGet(size);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * An inventory many threads can change at the same time, so that actions can pay each other directly instead of
+ * going through effects. Each good is a float stored as its bits in an atomic array and updated with a compare and
+ * swap loop: no lock, and two threads only ever retry when they hit the same good of the same inventory. <br>
+ * Additions from different threads commute, but since they happen in no particular order float rounding may differ
+ * from run to run. <br>
+ * Reads come in two flavors: RELAXED reads see the latest value, including whatever other threads are adding right
+ * now; SNAPSHOT reads see the value at the last snapshot, which the schedule takes at the start of every phase for
+ * each concurrent inventory registered with an agent. Within a phase snapshot reads are therefore consistent no
+ * matter how the actions interleave.
+ */
+public class ConcurrentInventory implements Owner {
+
+    public enum ReadMode {
+
+        /**
+         * hasHowMany returns the current value
+         */
+        RELAXED,
+
+        /**
+         * hasHowMany returns the value at the last snapshot
+         */
+        SNAPSHOT
+    }
+
+    private final AtomicIntegerArray goodsOwned;
+
+    /**
+     * written only while no phase is running, read by anybody
+     */
+    private final float[] snapshot;
+
+    private final ReadMode readMode;
+
+    public ConcurrentInventory() {
+        this(ReadMode.RELAXED);
+    }
+
+    public ConcurrentInventory(ReadMode readMode) {
+        this.readMode = readMode;
+        goodsOwned = new AtomicIntegerArray(GoodType.values().length);
+        snapshot = new float[GoodType.values().length];
+    }
+
+    private void add(int good, float amount){
+        while(true) {
+            int bits = goodsOwned.get(good);
+            int updated = Float.floatToRawIntBits(Float.intBitsToFloat(bits) + amount);
+            if(goodsOwned.compareAndSet(good, bits, updated))
+                return;
+        }
+    }
+
+    public void receiveOrProduce(GoodType type, float amount){
+        add(type.ordinal(), amount);
+    }
+
+    public void consume(GoodType type, float amount){
+        add(type.ordinal(), -amount);
+    }
+
+    /**
+     * how much is owned, according to the read mode
+     */
+    public float hasHowMany(GoodType type){
+        return readMode == ReadMode.RELAXED ? current(type) : snapshot[type.ordinal()];
+    }
+
+    /**
+     * how much is owned right now, whatever the read mode
+     */
+    public float current(GoodType type){
+        return Float.intBitsToFloat(goodsOwned.get(type.ordinal()));
+    }
+
+    /**
+     * how much was owned at the last snapshot, whatever the read mode
+     */
+    public float snapshotted(GoodType type){
+        return snapshot[type.ordinal()];
+    }
+
+    public void resetTo0(GoodType type){
+        goodsOwned.set(type.ordinal(), Float.floatToRawIntBits(0f));
+    }
+
+    /**
+     * copy the current values into the snapshot. Only call this while nobody is reading or writing the inventory:
+     * the schedule does it at the start of each phase
+     */
+    public void snapshot(){
+        for(int i=0; i<snapshot.length; i++)
+            snapshot[i] = Float.intBitsToFloat(goodsOwned.get(i));
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+}
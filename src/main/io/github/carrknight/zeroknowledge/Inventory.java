@@ -26,7 +26,8 @@ package io.github.carrknight.zeroknowledge;
 
 /**
  * A simple facade for an array. This is very thread-unsafe, which means that these methods should only be dealt with
- * as an effect and only by the agent owning the inventory. <br>
+ * as an effect and only by the agent owning the inventory, or through the transfers of the schedule. Use a
+ * ConcurrentInventory when many threads need to change it at once. <br>
  *     Negatives are allowed, no problems
  * Created by carrknight on 7/29/14.
  */
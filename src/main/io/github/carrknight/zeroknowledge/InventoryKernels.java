@@ -0,0 +1,332 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Whole-population operations on an InventoryStore: instead of one action or effect per agent going through Owner
+ * calls, each kernel is a tight loop over the columns, with the rows split in large ranges run in parallel on a
+ * fork/join pool. On an on-heap store, kernels over every row read and write plain float arrays in sequence, which
+ * the JIT unrolls and vectorizes. Kernels over a subset take the row indices instead. <br>
+ * Same rules as the store: call them when nothing else touches the columns involved, for example from a single
+ * action of a phase or between phases. Indices in a subset must be distinct: each row is touched by one thread only.
+ */
+public final class InventoryKernels {
+
+    /**
+     * rows per leaf task
+     */
+    private static final int GRAIN = 8192;
+
+    private InventoryKernels() {
+    }
+
+    /**
+     * empty a good in every inventory of the store
+     */
+    public static void resetTo0(ForkJoinPool pool, InventoryStore store, GoodType type){
+        final float[] array = store.columnArray(type);
+        final FloatBuffer column = store.rawColumn(type);
+        partitioned(pool, store.size(), (from, to) -> {
+            if(array != null)
+                Arrays.fill(array, from, to, 0);
+            else
+                for(int i=from; i<to; i++)
+                    column.put(i, 0);
+            return 0;
+        });
+    }
+
+    /**
+     * empty a good in the given inventories
+     */
+    public static void resetTo0(ForkJoinPool pool, InventoryStore store, GoodType type, int[] rows){
+        final FloatBuffer column = store.rawColumn(type);
+        partitioned(pool, rows.length, (from, to) -> {
+            for(int i=from; i<to; i++)
+                column.put(rows[i], 0);
+            return 0;
+        });
+    }
+
+    /**
+     * fixed-proportions production in every inventory: each makes as many units as it has input for, up to maxUnits,
+     * consuming inputPerUnit of input and producing outputPerUnit of output per unit
+     * @return total units produced
+     */
+    public static double produce(ForkJoinPool pool, InventoryStore store, GoodType input, float inputPerUnit,
+                                 GoodType output, float outputPerUnit, float maxUnits){
+        checkProduction(input, inputPerUnit, output, maxUnits);
+        final float[] inputs = store.columnArray(input);
+        final float[] outputs = store.columnArray(output);
+        if(inputs == null)
+            return produce(pool, store, input, inputPerUnit, output, outputPerUnit, maxUnits, null);
+        return partitioned(pool, store.size(), (from, to) -> {
+            double units = 0;
+            for(int i=from; i<to; i++) {
+                float made = Math.max(0, Math.min(maxUnits, inputs[i] / inputPerUnit));
+                inputs[i] -= made * inputPerUnit;
+                outputs[i] += made * outputPerUnit;
+                units += made;
+            }
+            return units;
+        });
+    }
+
+    /**
+     * like produce(pool, store, input, inputPerUnit, output, outputPerUnit, maxUnits) for the given inventories only
+     * @param rows the inventories producing; null for all of them
+     */
+    public static double produce(ForkJoinPool pool, InventoryStore store, GoodType input, float inputPerUnit,
+                                 GoodType output, float outputPerUnit, float maxUnits, int[] rows){
+        checkProduction(input, inputPerUnit, output, maxUnits);
+        final FloatBuffer inputs = store.rawColumn(input);
+        final FloatBuffer outputs = store.rawColumn(output);
+        return partitioned(pool, rows == null ? store.size() : rows.length, (from, to) -> {
+            double units = 0;
+            for(int i=from; i<to; i++) {
+                int row = rows == null ? i : rows[i];
+                float made = Math.max(0, Math.min(maxUnits, inputs.get(row) / inputPerUnit));
+                inputs.put(row, inputs.get(row) - made * inputPerUnit);
+                outputs.put(row, outputs.get(row) + made * outputPerUnit);
+                units += made;
+            }
+            return units;
+        });
+    }
+
+    private static void checkProduction(GoodType input, float inputPerUnit, GoodType output, float maxUnits){
+        if(input == output)
+            throw new IllegalArgumentException("input and output must be different goods, not both " + input);
+        if(!(inputPerUnit > 0) || !(maxUnits >= 0))
+            throw new IllegalArgumentException("can't produce up to " + maxUnits + " units using " + inputPerUnit +
+                                                       " input each");
+    }
+
+    /**
+     * take the same fraction of a good from every inventory holding a positive amount
+     * @return the total taken, for the caller to hand to whoever collects it
+     */
+    public static double tax(ForkJoinPool pool, InventoryStore store, GoodType type, float rate){
+        checkRate(rate);
+        final float[] array = store.columnArray(type);
+        if(array == null)
+            return tax(pool, store, type, rate, null);
+        return partitioned(pool, store.size(), (from, to) -> {
+            double collected = 0;
+            for(int i=from; i<to; i++) {
+                float paid = Math.max(0, array[i]) * rate;
+                array[i] -= paid;
+                collected += paid;
+            }
+            return collected;
+        });
+    }
+
+    /**
+     * like tax(pool, store, type, rate) for the given inventories only
+     * @param rows the inventories paying; null for all of them
+     */
+    public static double tax(ForkJoinPool pool, InventoryStore store, GoodType type, float rate, int[] rows){
+        checkRate(rate);
+        final FloatBuffer column = store.rawColumn(type);
+        return partitioned(pool, rows == null ? store.size() : rows.length, (from, to) -> {
+            double collected = 0;
+            for(int i=from; i<to; i++) {
+                int row = rows == null ? i : rows[i];
+                float held = column.get(row);
+                float paid = Math.max(0, held) * rate;
+                column.put(row, held - paid);
+                collected += paid;
+            }
+            return collected;
+        });
+    }
+
+    private static void checkRate(float rate){
+        if(!(rate >= 0 && rate <= 1))
+            throw new IllegalArgumentException("tax rate must be between 0 and 1, not " + rate);
+    }
+
+    /**
+     * for each pair, move amount of a good from senders[i] to receivers[i] if the sender is left with at least
+     * keepAtLeast. The pairs are grouped by sender first, so each sender is checked and debited by one thread only,
+     * going through its pairs in order: a sender appearing in many pairs pays for as many as it can afford. Then the
+     * pairs that went through are grouped by receiver and each receiver is credited by one thread only, so a receiver
+     * may appear in many pairs too (and be a sender: what it receives doesn't count towards what it can send). <br>
+     * Grouping sorts the pairs, so the cost grows with the number of pairs, not with the size of the store
+     * @return how many transfers happened
+     */
+    public static int transferIf(ForkJoinPool pool, InventoryStore store, GoodType type, int[] senders,
+                                 int[] receivers, float amount, float keepAtLeast){
+        if(senders.length != receivers.length)
+            throw new IllegalArgumentException(senders.length + " senders but " + receivers.length + " receivers");
+        if(!(amount >= 0))
+            throw new IllegalArgumentException("can't transfer an amount of " + amount);
+        if(Float.isNaN(keepAtLeast))
+            throw new IllegalArgumentException("senders can't keep at least " + keepAtLeast);
+        final int rows = store.size();
+        for(int i=0; i<senders.length; i++)
+            if(senders[i] < 0 || senders[i] >= rows || receivers[i] < 0 || receivers[i] >= rows)
+                throw new IndexOutOfBoundsException("transfer from " + senders[i] + " to " + receivers[i] +
+                                                            " in a store of " + rows);
+
+        final FloatBuffer column = store.rawColumn(type);
+        final long[] bySender = grouped(senders, null);
+        final boolean[] sent = new boolean[senders.length];
+        int transfers = (int) partitionedByRow(pool, bySender, (row, from, to) -> {
+            int count = 0;
+            float held = column.get(row);
+            for(int k=from; k<to; k++) {
+                if(held - amount >= keepAtLeast) {
+                    held -= amount;
+                    sent[pair(bySender[k])] = true;
+                    count++;
+                }
+            }
+            column.put(row, held);
+            return count;
+        });
+
+        final long[] byReceiver = grouped(receivers, sent);
+        partitionedByRow(pool, byReceiver, (row, from, to) -> {
+            float held = column.get(row);
+            for(int k=from; k<to; k++)
+                held += amount;
+            column.put(row, held);
+            return 0;
+        });
+        return transfers;
+    }
+
+    /**
+     * the pairs (only those flagged, if flags aren't null) as row in the high half and pair index in the low half,
+     * sorted: grouped by row and in pair order within each row
+     */
+    private static long[] grouped(int[] rows, boolean[] flags){
+        int size = 0;
+        long[] keys = new long[rows.length];
+        for(int i=0; i<rows.length; i++)
+            if(flags == null || flags[i])
+                keys[size++] = ((long) rows[i] << 32) | i;
+        keys = size == keys.length ? keys : Arrays.copyOf(keys, size);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private static int row(long key){
+        return (int) (key >>> 32);
+    }
+
+    private static int pair(long key){
+        return (int) key;
+    }
+
+    /**
+     * split the grouped pairs in ranges on the pool, never splitting a row's group, and call the loop once per row
+     * with the range of its pairs; sum what it returns
+     */
+    private static double partitionedByRow(ForkJoinPool pool, long[] grouped, RowLoop loop){
+        return partitioned(pool, grouped.length, (from, to) -> {
+            //each range handles the groups starting inside it
+            int last = groupStart(grouped, to);
+            double result = 0;
+            for(int start=groupStart(grouped, from); start<last; ) {
+                int end = start + 1;
+                while(end < grouped.length && row(grouped[end]) == row(grouped[start]))
+                    end++;
+                result += loop.run(row(grouped[start]), start, end);
+                start = end;
+            }
+            return result;
+        });
+    }
+
+    private static int groupStart(long[] grouped, int k){
+        while(k > 0 && k < grouped.length && row(grouped[k]) == row(grouped[k - 1]))
+            k++;
+        return k;
+    }
+
+    /**
+     * run the loop over [0,size) split in ranges on the pool and sum what each range returns
+     */
+    private static double partitioned(ForkJoinPool pool, int size, RangeLoop loop){
+        Split task = new Split(loop, 0, size);
+        if(ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool)
+            return task.invoke();
+        return pool.invoke(task);
+    }
+
+    private interface RangeLoop {
+
+        /**
+         * @return the range's share of the result (0 for kernels returning nothing)
+         */
+        double run(int from, int to);
+    }
+
+    private interface RowLoop {
+
+        /**
+         * @param row the row the pairs in [from,to) share
+         * @return the row's share of the result
+         */
+        double run(int row, int from, int to);
+    }
+
+    private static final class Split extends RecursiveTask<Double> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RangeLoop loop;
+
+        private final int from;
+
+        private final int to;
+
+        private Split(RangeLoop loop, int from, int to) {
+            this.loop = loop;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if(to - from <= GRAIN)
+                return loop.run(from, to);
+            int middle = (from + to) >>> 1;
+            Split right = new Split(loop, middle, to);
+            right.fork();
+            double left = new Split(loop, from, middle).compute();
+            return left + right.join();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Many inventories stored as columns: one contiguous float column per good type, the i-th inventory being the i-th
+ * row of every column. Compared to one Inventory object per agent this avoids millions of tiny arrays on the heap and
+ * lets a scan over one good for the whole economy read memory sequentially. <br>
+ * Columns can live on the heap or off-heap (direct buffers, not touched by the GC). Each row is handed out as a
+ * lightweight Owner view so code written against Owner doesn't need to change. <br>
+ * Same rules as Inventory: it's thread-unsafe, each row should only be touched as an effect by the agent owning it,
+ * and new rows should only be added while nobody else is using the store.
+ */
+public class InventoryStore {
+
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final boolean offHeap;
+
+    private FloatBuffer[] columns;
+
+    private int capacity;
+
+    private int size = 0;
+
+    private InventoryStore(int initialCapacity, boolean offHeap) {
+        this.offHeap = offHeap;
+        this.capacity = Math.max(1,initialCapacity);
+        columns = new FloatBuffer[GoodType.values().length];
+        for(int i=0; i<columns.length; i++)
+            columns[i] = allocate(capacity);
+    }
+
+    /**
+     * a store whose columns are plain float arrays
+     * @param initialCapacity how many inventories to make room for (it grows anyway)
+     */
+    public static InventoryStore onHeap(int initialCapacity){
+        return new InventoryStore(initialCapacity,false);
+    }
+
+    /**
+     * a store whose columns are direct buffers in native order
+     * @param initialCapacity how many inventories to make room for (it grows anyway)
+     */
+    public static InventoryStore offHeap(int initialCapacity){
+        return new InventoryStore(initialCapacity,true);
+    }
+
+    private FloatBuffer allocate(int length){
+        if(offHeap)
+            return ByteBuffer.allocateDirect(length * BYTES_PER_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        else
+            return FloatBuffer.wrap(new float[length]);
+    }
+
+    /**
+     * add a new, empty, inventory to the store
+     * @return the index of the new inventory
+     */
+    public int addInventory(){
+        if(size == capacity)
+            grow(capacity * 2);
+        return size++;
+    }
+
+    private void grow(int newCapacity){
+        for(int i=0; i<columns.length; i++) {
+            FloatBuffer bigger = allocate(newCapacity);
+            FloatBuffer old = columns[i].duplicate();
+            old.position(0).limit(size);
+            bigger.put(old);
+            bigger.clear();
+            columns[i] = bigger;
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * the Owner view of an inventory in this store. Views are cheap and hold no state so there is no need to cache them
+     * @param index the index returned by addInventory
+     */
+    public Owner getInventory(int index){
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("no inventory " + index + " in a store of " + size);
+        return new Row(this,index);
+    }
+
+    public void receiveOrProduce(int index, GoodType type, float amount){
+        FloatBuffer column = columns[type.ordinal()];
+        column.put(index, column.get(index) + amount);
+    }
+
+    public void consume(int index, GoodType type, float amount){
+        FloatBuffer column = columns[type.ordinal()];
+        column.put(index, column.get(index) - amount);
+    }
+
+    public float hasHowMany(int index, GoodType type){
+        return columns[type.ordinal()].get(index);
+    }
+
+    public void resetTo0(int index, GoodType type){
+        columns[type.ordinal()].put(index,0);
+    }
+
+    /**
+     * the whole column of a good, for bulk scans. Only the first size() elements are inventories; the buffer is a
+     * view sharing the content with the store but becomes stale if the store grows
+     */
+    public FloatBuffer column(GoodType type){
+        FloatBuffer column = columns[type.ordinal()].duplicate();
+        column.limit(size);
+        return column;
+    }
+
+    /**
+     * the column itself, for the kernels: absolute gets and puts only
+     */
+    FloatBuffer rawColumn(GoodType type){
+        return columns[type.ordinal()];
+    }
+
+    /**
+     * the array behind the column of an on-heap store; null off-heap. Becomes stale if the store grows
+     */
+    float[] columnArray(GoodType type){
+        return offHeap ? null : columns[type.ordinal()].array();
+    }
+
+    /**
+     * sum of a good over all the inventories in the store
+     */
+    public double sum(GoodType type){
+        FloatBuffer column = columns[type.ordinal()];
+        double sum = 0;
+        for(int i=0; i<size; i++)
+            sum += column.get(i);
+        return sum;
+    }
+
+    /**
+     * how many inventories are in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * a single inventory of the store. Just a pointer, all the data is in the columns
+     */
+    private static final class Row implements Owner {
+
+        private final InventoryStore store;
+
+        private final int index;
+
+        private Row(InventoryStore store, int index) {
+            this.store = store;
+            this.index = index;
+        }
+
+        @Override
+        public void receiveOrProduce(GoodType type, float amount) {
+            store.receiveOrProduce(index, type, amount);
+        }
+
+        @Override
+        public void consume(GoodType type, float amount) {
+            store.consume(index, type, amount);
+        }
+
+        @Override
+        public float hasHowMany(GoodType type) {
+            return store.hasHowMany(index, type);
+        }
+
+        @Override
+        public void resetTo0(GoodType type) {
+            store.resetTo0(index, type);
+        }
+    }
+}
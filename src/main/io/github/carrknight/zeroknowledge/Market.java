@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import io.github.carrknight.schedule.DAY_PHASES;
+import io.github.carrknight.schedule.Effect;
+import io.github.carrknight.schedule.Phase;
+import io.github.carrknight.schedule.Schedule;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A market for zero-intelligence traders: one order book per traded good, all paid in CASH. <br>
+ * Agents place bids and asks before the clearing phase (from any number of actions at once); during the clearing
+ * phase, TRADE unless told otherwise, the market clears all the books in parallel, one task per good, and then
+ * settles: each trader that traded gets a single effect updating its inventory with the net goods and cash of all its
+ * trades. Orders are stored in primitive arrays and the settlement effects are created once per trader and reused,
+ * so a day of trading allocates (almost) nothing. <br>
+ * Traders are identified by their schedule agent id. Register them all before the model starts.
+ */
+public class Market {
+
+    private final Schedule schedule;
+
+    private final EnumMap<GoodType,OrderBook> books = new EnumMap<>(GoodType.class);
+
+    /**
+     * the books again, as an array for iterating and forking
+     */
+    private final OrderBook[] allBooks;
+
+    /**
+     * the inventory of each trader, by agent id
+     */
+    private Owner[] inventories = new Owner[16];
+
+    /**
+     * the settlement effect of each trader, by agent id
+     */
+    private Settlement[] settlements = new Settlement[16];
+
+    /**
+     * flags telling which traders have already had their settlement registered today
+     */
+    private boolean[] settling = new boolean[16];
+
+    private final int settlementPriority;
+
+    /**
+     * @param schedule the schedule
+     * @param clearing the phase during which the market clears; orders must be placed in an earlier phase
+     * @param settlementPriority the priority of the effects settling trades
+     * @param traded the goods with a book. CASH can't be one of them since it's what everything is paid in
+     */
+    public Market(Schedule schedule, Phase clearing, int settlementPriority, GoodType... traded) {
+        if(traded.length == 0)
+            throw new IllegalArgumentException("a market needs at least one good to trade");
+        this.schedule = schedule;
+        this.settlementPriority = settlementPriority;
+        for(GoodType good : traded) {
+            if(good == GoodType.CASH)
+                throw new IllegalArgumentException("cash is what goods are paid in, it can't be traded");
+            books.put(good, new OrderBook(good, inventories.length));
+        }
+        allBooks = books.values().toArray(new OrderBook[books.size()]);
+
+        schedule.registerRecurringAction(clearing, this::clear);
+    }
+
+    /**
+     * a market clearing during TRADE
+     * @param settlementPriority the priority of the effects settling trades
+     */
+    public Market(Schedule schedule, int settlementPriority, GoodType... traded) {
+        this(schedule, DAY_PHASES.TRADE, settlementPriority, traded);
+    }
+
+    /**
+     * a market clearing during TRADE, with settlement effects of priority 0
+     */
+    public Market(Schedule schedule, GoodType... traded) {
+        this(schedule, 0, traded);
+    }
+
+    /**
+     * let this agent trade. Not thread safe: call it while setting up the model
+     * @param agentId the schedule id of the agent
+     * @param inventory where the agent's goods and cash are
+     */
+    public void registerTrader(int agentId, Owner inventory){
+        if(agentId >= inventories.length) {
+            int size = Math.max(agentId + 1, inventories.length * 2);
+            inventories = Arrays.copyOf(inventories, size);
+            settlements = Arrays.copyOf(settlements, size);
+            settling = Arrays.copyOf(settling, size);
+        }
+        for(OrderBook book : allBooks)
+            book.ensureTraders(inventories.length);
+        inventories[agentId] = inventory;
+        settlements[agentId] = new Settlement(agentId);
+    }
+
+    /**
+     * offer to buy up to this much of the good, paying at most this price per unit. Thread safe
+     */
+    public void placeBid(GoodType good, int agentId, float price, float quantity){
+        checkOrder(agentId, price, quantity);
+        book(good).placeBid(agentId, price, quantity);
+    }
+
+    /**
+     * offer to sell up to this much of the good, for at least this price per unit. Thread safe
+     */
+    public void placeAsk(GoodType good, int agentId, float price, float quantity){
+        checkOrder(agentId, price, quantity);
+        book(good).placeAsk(agentId, price, quantity);
+    }
+
+    private void checkOrder(int agentId, float price, float quantity){
+        if(agentId < 0 || agentId >= inventories.length || inventories[agentId] == null)
+            throw new IllegalArgumentException("agent " + agentId + " is not a registered trader");
+        if(!(price >= 0) || Float.isInfinite(price))
+            throw new IllegalArgumentException("invalid price " + price);
+        if(!(quantity > 0) || Float.isInfinite(quantity))
+            throw new IllegalArgumentException("invalid quantity " + quantity);
+    }
+
+    private OrderBook book(GoodType good){
+        OrderBook book = books.get(good);
+        if(book == null)
+            throw new IllegalArgumentException(good + " is not traded in this market");
+        return book;
+    }
+
+    /**
+     * volume weighted average price of the good at the last clearing; NaN if nothing was traded
+     */
+    public float getLastPrice(GoodType good){
+        return book(good).getLastPrice();
+    }
+
+    /**
+     * how much of the good was traded at the last clearing
+     */
+    public float getLastVolume(GoodType good){
+        return book(good).getLastVolume();
+    }
+
+    /**
+     * the TRADE action: clear all the books in parallel, then register one settlement effect per trader that traded
+     */
+    private void clear(){
+        for(OrderBook book : allBooks)
+            book.reinitialize();
+        ForkJoinTask.invokeAll(allBooks);
+
+        for(OrderBook book : allBooks)
+            for(int i=0; i<book.touchedCount; i++) {
+                int trader = book.touched[i];
+                if(!settling[trader]) {
+                    settling[trader] = true;
+                    schedule.registerEffect(settlements[trader], trader);
+                }
+            }
+        for(OrderBook book : allBooks)
+            for(int i=0; i<book.touchedCount; i++)
+                settling[book.touched[i]] = false;
+    }
+
+    /**
+     * moves the results of a trader's trades, in every book, into its inventory
+     */
+    private class Settlement extends Effect {
+
+        private final int trader;
+
+        private Settlement(int trader) {
+            super(settlementPriority);
+            this.trader = trader;
+        }
+
+        @Override
+        public void run() {
+            Owner inventory = inventories[trader];
+            float cash = 0;
+            for(OrderBook book : allBooks) {
+                float quantity = book.goodDelta[trader];
+                if(quantity > 0)
+                    inventory.receiveOrProduce(book.getGood(), quantity);
+                else if(quantity < 0)
+                    inventory.consume(book.getGood(), -quantity);
+                cash += book.cashDelta[trader];
+                book.goodDelta[trader] = 0;
+                book.cashDelta[trader] = 0;
+            }
+            if(cash > 0)
+                inventory.receiveOrProduce(GoodType.CASH, cash);
+            else if(cash < 0)
+                inventory.consume(GoodType.CASH, -cash);
+        }
+    }
+}
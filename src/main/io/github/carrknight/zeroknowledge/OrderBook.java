@@ -0,0 +1,317 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The book of a single good: bids and asks kept in primitive arrays, cleared once a day as a call market. <br>
+ * Orders are appended concurrently to a few stripes, each claiming slots with an atomic counter; no object is created
+ * per order unless a stripe is full, in which case the order goes to an overflow queue and the stripe grows at the
+ * next clearing. <br>
+ * Clearing matches the highest bids with the lowest asks as long as the bid is at least the ask, each match trading at
+ * the midpoint of the two prices. The result is written as net good and cash deltas per trader, to be settled by the
+ * market. This is the fork/join task doing it, reused every day.
+ */
+final class OrderBook extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_STRIPE_CAPACITY = 256;
+
+    private final GoodType good;
+
+    private final Orders bids;
+
+    private final Orders asks;
+
+    /**
+     * net quantity of the good each trader gets (or gives, when negative) from today's trades
+     */
+    float[] goodDelta;
+
+    /**
+     * net cash each trader gets (or gives, when negative) from today's trades
+     */
+    float[] cashDelta;
+
+    /**
+     * the traders that traded today, and a flag for each trader telling whether it is in the list
+     */
+    int[] touched = new int[16];
+
+    int touchedCount = 0;
+
+    private boolean[] isTouched;
+
+    private volatile float lastPrice = Float.NaN;
+
+    private volatile float lastVolume = 0;
+
+    OrderBook(GoodType good, int traders) {
+        this.good = good;
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        bids = new Orders(stripes);
+        asks = new Orders(stripes);
+        goodDelta = new float[traders];
+        cashDelta = new float[traders];
+        isTouched = new boolean[traders];
+    }
+
+    public GoodType getGood() {
+        return good;
+    }
+
+    /**
+     * make room for this many traders. Not thread safe
+     */
+    void ensureTraders(int traders){
+        if(traders > goodDelta.length) {
+            int size = Math.max(traders, goodDelta.length * 2);
+            goodDelta = Arrays.copyOf(goodDelta, size);
+            cashDelta = Arrays.copyOf(cashDelta, size);
+            isTouched = Arrays.copyOf(isTouched, size);
+        }
+    }
+
+    public void placeBid(int trader, float price, float quantity){
+        bids.add(trader, price, quantity);
+    }
+
+    public void placeAsk(int trader, float price, float quantity){
+        asks.add(trader, price, quantity);
+    }
+
+    /**
+     * volume weighted average price of the last clearing; NaN if nothing was traded
+     */
+    public float getLastPrice() {
+        return lastPrice;
+    }
+
+    /**
+     * how much was traded at the last clearing
+     */
+    public float getLastVolume() {
+        return lastVolume;
+    }
+
+    @Override
+    protected void compute() {
+        //forget yesterday's traders; their deltas were zeroed when settling
+        for(int i=0; i<touchedCount; i++)
+            isTouched[touched[i]] = false;
+        touchedCount = 0;
+
+        int bidCount = bids.collect(true);
+        int askCount = asks.collect(false);
+
+        float volume = 0;
+        double value = 0;
+        int b = 0;
+        int a = 0;
+        float bidLeft = bidCount > 0 ? bids.quantityAt(0) : 0;
+        float askLeft = askCount > 0 ? asks.quantityAt(0) : 0;
+        while(b < bidCount && a < askCount && bids.priceAt(b) >= asks.priceAt(a)) {
+            float quantity = Math.min(bidLeft, askLeft);
+            float price = (bids.priceAt(b) + asks.priceAt(a)) / 2f;
+            trade(bids.traderAt(b), quantity, -quantity * price);
+            trade(asks.traderAt(a), -quantity, quantity * price);
+            volume += quantity;
+            value += (double) quantity * price;
+
+            bidLeft -= quantity;
+            askLeft -= quantity;
+            if(bidLeft <= 0 && ++b < bidCount)
+                bidLeft = bids.quantityAt(b);
+            if(askLeft <= 0 && ++a < askCount)
+                askLeft = asks.quantityAt(a);
+        }
+
+        lastVolume = volume;
+        lastPrice = volume > 0 ? (float) (value / volume) : Float.NaN;
+    }
+
+    private void trade(int trader, float quantity, float cash){
+        goodDelta[trader] += quantity;
+        cashDelta[trader] += cash;
+        if(!isTouched[trader]) {
+            isTouched[trader] = true;
+            if(touchedCount == touched.length)
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            touched[touchedCount++] = trader;
+        }
+    }
+
+    /**
+     * one side of the book: the concurrent stripes orders are placed in and the flat, sorted copy clearing works on
+     */
+    private static final class Orders {
+
+        private final Stripe[] stripes;
+
+        private final Queue<Overflow> overflow = new ConcurrentLinkedQueue<>();
+
+        private int[] traders = new int[INITIAL_STRIPE_CAPACITY];
+
+        private float[] prices = new float[INITIAL_STRIPE_CAPACITY];
+
+        private float[] quantities = new float[INITIAL_STRIPE_CAPACITY];
+
+        /**
+         * price (made sortable) in the high half, position in the flat arrays in the low half
+         */
+        private long[] keys = new long[INITIAL_STRIPE_CAPACITY];
+
+        private Orders(int stripes) {
+            this.stripes = new Stripe[stripes];
+            for(int i=0; i<stripes; i++)
+                this.stripes[i] = new Stripe();
+        }
+
+        private void add(int trader, float price, float quantity){
+            Stripe stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+            int slot = stripe.claimed.getAndIncrement();
+            if(slot < stripe.traders.length) {
+                stripe.traders[slot] = trader;
+                stripe.prices[slot] = price;
+                stripe.quantities[slot] = quantity;
+            }
+            else
+                overflow.add(new Overflow(trader, price, quantity));
+        }
+
+        /**
+         * gather every stripe (and the overflow) in the flat arrays sorted by price, best price first; empty the
+         * stripes, growing the ones that overflowed
+         * @return how many orders there are
+         */
+        private int collect(boolean descending){
+            int count = 0;
+            for(Stripe stripe : stripes)
+                count += Math.min(stripe.claimed.get(), stripe.traders.length);
+            count += overflow.size();
+            if(keys.length < count) {
+                int size = Math.max(count, keys.length * 2);
+                keys = new long[size];
+                traders = new int[size];
+                prices = new float[size];
+                quantities = new float[size];
+            }
+
+            int position = 0;
+            for(Stripe stripe : stripes) {
+                int claimed = stripe.claimed.get();
+                int stored = Math.min(claimed, stripe.traders.length);
+                System.arraycopy(stripe.traders, 0, traders, position, stored);
+                System.arraycopy(stripe.prices, 0, prices, position, stored);
+                System.arraycopy(stripe.quantities, 0, quantities, position, stored);
+                position += stored;
+                if(claimed > stored)
+                    stripe.grow(claimed);
+                stripe.claimed.set(0);
+            }
+            Overflow order;
+            while((order = overflow.poll()) != null) {
+                traders[position] = order.trader;
+                prices[position] = order.price;
+                quantities[position] = order.quantity;
+                position++;
+            }
+
+            for(int i=0; i<count; i++)
+                keys[i] = ((long) sortable(descending ? -prices[i] : prices[i]) << 32) | i;
+            Arrays.sort(keys, 0, count);
+            return count;
+        }
+
+        private int sortedIndex(int rank){
+            return (int) keys[rank];
+        }
+
+        private int traderAt(int rank){
+            return traders[sortedIndex(rank)];
+        }
+
+        private float priceAt(int rank){
+            return prices[sortedIndex(rank)];
+        }
+
+        private float quantityAt(int rank){
+            return quantities[sortedIndex(rank)];
+        }
+
+        /**
+         * an int whose signed order is the order of the float
+         */
+        private static int sortable(float value){
+            int bits = Float.floatToIntBits(value);
+            return bits ^ ((bits >> 31) & 0x7fffffff);
+        }
+    }
+
+    private static final class Stripe {
+
+        private final AtomicInteger claimed = new AtomicInteger(0);
+
+        private int[] traders = new int[INITIAL_STRIPE_CAPACITY];
+
+        private float[] prices = new float[INITIAL_STRIPE_CAPACITY];
+
+        private float[] quantities = new float[INITIAL_STRIPE_CAPACITY];
+
+        /**
+         * only called while nobody is placing orders
+         */
+        private void grow(int demand){
+            int size = Integer.highestOneBit(demand - 1) << 1;
+            traders = new int[size];
+            prices = new float[size];
+            quantities = new float[size];
+        }
+    }
+
+    /**
+     * an order that didn't fit in its stripe
+     */
+    private static final class Overflow {
+
+        private final int trader;
+
+        private final float price;
+
+        private final float quantity;
+
+        private Overflow(int trader, float price, float quantity) {
+            this.trader = trader;
+            this.price = price;
+            this.quantity = quantity;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.*;
+
+public class EnsembleRunnerTest {
+
+
+    @Test
+    public void allReplicasRunAllDaysWithinTheCap() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final Set<Long> seeds = new HashSet<>();
+
+        EnsembleRunner runner = new EnsembleRunner(pool, 3, 42);
+        List<Schedule> replicas = runner.run(20, 30, (replica, seed, replicaPool) -> {
+            seeds.add(seed);
+            Schedule schedule = new ScheduleServer(replicaPool);
+            //count the replicas between the first and the last phase of their day
+            schedule.registerRecurringAction(DAY_PHASES.PRODUCTION,
+                    () -> maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max));
+            schedule.registerRecurringAction(DAY_PHASES.DATA_AND_OUTPUT, inFlight::decrementAndGet);
+            return schedule;
+        });
+
+        Assert.assertEquals(20, replicas.size());
+        for(Schedule replica : replicas)
+            Assert.assertEquals(30, replica.getDay());
+        Assert.assertEquals(20, seeds.size());
+        Assert.assertTrue(maxInFlight.get() <= 3);
+        Assert.assertEquals(0, inFlight.get());
+
+        //same master seed, same replica seeds
+        final Set<Long> again = new HashSet<>();
+        runner.run(20, 0, (replica, seed, replicaPool) -> {
+            again.add(seed);
+            return new ScheduleServer(replicaPool);
+        });
+        Assert.assertEquals(seeds, again);
+        pool.shutdown();
+    }
+
+    @Test
+    public void daysThatAreOverRightAwayDontPileUpOnTheStack() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        final Schedule schedule = mock(Schedule.class);
+        when(schedule.completeADayAsync()).thenReturn(CompletableFuture.completedFuture(1));
+
+        List<Schedule> replicas = new EnsembleRunner(pool, 1, 42).runAsync(1, 100000,
+                (replica, seed, replicaPool) -> schedule).get(1, TimeUnit.MINUTES);
+        Assert.assertEquals(1, replicas.size());
+        verify(schedule, times(100000)).completeADayAsync();
+        pool.shutdown();
+    }
+}
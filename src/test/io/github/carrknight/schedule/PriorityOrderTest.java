@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.schedule;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class PriorityOrderTest {
+
+
+    @Test
+    public void sortsLikeAStableSort() throws Exception {
+        Random random = new Random(0);
+        //short lists, tight priorities (counting sort), wide priorities (radix), negative ones too
+        int[] sizes = {2, 10, 100, 1000};
+        int[] ranges = {3, 1000, Integer.MAX_VALUE};
+        for(int size : sizes)
+            for(int range : ranges)
+                for(boolean stable : new boolean[]{true,false}) {
+                    int[] priorities = new int[size];
+                    for (int i = 0; i < size; i++)
+                        priorities[i] = random.nextInt(range) - (range == Integer.MAX_VALUE ? range / 2 : 0);
+
+                    //what a stable sort would do
+                    Integer[] expected = new Integer[size];
+                    for (int i = 0; i < size; i++)
+                        expected[i] = i;
+                    Arrays.sort(expected, (a, b) -> Integer.compare(priorities[a], priorities[b]));
+
+                    int[] order = PriorityOrder.get().sort(priorities, size, stable);
+                    if (order == null) //already sorted
+                        order = Arrays.stream(expected).mapToInt(Integer::intValue).sorted().toArray();
+                    for (int i = 0; i < size; i++) {
+                        Assert.assertEquals(priorities[expected[i]], priorities[order[i]]);
+                        if (stable)
+                            Assert.assertEquals(expected[i].intValue(), order[i]);
+                    }
+                }
+    }
+
+    @Test
+    public void largeListsSortInLinearTimeEvenInFastMode() throws Exception {
+        Random random = new Random(0);
+        //tight priorities go through counting sort, wide ones through radix sort: both keep ties in order
+        for(int range : new int[]{50, Integer.MAX_VALUE}) {
+            int size = 10000;
+            int[] priorities = new int[size];
+            for (int i = 0; i < size; i++)
+                priorities[i] = random.nextInt(range);
+            Integer[] expected = new Integer[size];
+            for (int i = 0; i < size; i++)
+                expected[i] = i;
+            Arrays.sort(expected, (a, b) -> Integer.compare(priorities[a], priorities[b]));
+
+            int[] order = PriorityOrder.get().sort(priorities, size, false);
+            for (int i = 0; i < size; i++)
+                Assert.assertEquals(expected[i].intValue(), order[i]);
+        }
+    }
+
+    @Test
+    public void nothingToDoWhenSorted() throws Exception {
+        Assert.assertNull(PriorityOrder.get().sort(new int[]{5}, 1, true));
+        Assert.assertNull(PriorityOrder.get().sort(new int[]{1, 1, 2, 3}, 4, false));
+    }
+}
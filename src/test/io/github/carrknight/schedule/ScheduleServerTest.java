@@ -24,16 +24,36 @@
 
 package io.github.carrknight.schedule;
 
+import io.github.carrknight.zeroknowledge.ConcurrentInventory;
+import io.github.carrknight.zeroknowledge.GoodType;
+import io.github.carrknight.zeroknowledge.Inventory;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
-import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.*;
 
 public class ScheduleServerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
 
     @Test
     public void effectsAreCleared() throws Exception {
@@ -187,6 +207,930 @@ public class ScheduleServerTest {
     }
 
 
+    @Test
+    public void recurringActionsRecur() throws Exception {
+        final int[] counts = new int[2];
+        Schedule server = new ScheduleServer();
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, () -> counts[0]++);
+        server.registerRecurringAction(DAY_PHASES.TRADE, new RecursiveAction() {
+            @Override
+            protected void compute() {
+                counts[1]++;
+            }
+        });
+
+        for(int i=0; i<10; i++)
+            server.completeADay();
+        Assert.assertEquals(10,counts[0]);
+        Assert.assertEquals(10,counts[1]);
+    }
+
+
+    @Test
+    public void manyConcurrentRegistrationsAreAllResolved() throws Exception {
+        Schedule server = new ScheduleServer();
+        final AtomicInteger effects = new AtomicInteger();
+        //a hundred actions, each registering a hundred effects from the pool workers
+        for(int i=0; i<100; i++)
+            server.registerRecurringAction(DAY_PHASES.PRODUCTION, () -> {
+                Agent agent = mock(Agent.class);
+                for(int j=0; j<100; j++)
+                    server.registerEffect(new Effect(j) {
+                        @Override
+                        public void run() {
+                            effects.incrementAndGet();
+                        }
+                    }, agent);
+            });
+
+        server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        Assert.assertEquals(10000,effects.get());
+        server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        Assert.assertEquals(20000,effects.get());
+    }
+
+
+    @Test
+    public void effectsByIdAndByAgentShareTheBucket() throws Exception {
+        Schedule server = new ScheduleServer();
+        Agent agent = mock(Agent.class);
+        Assert.assertEquals(0,server.registerAgent(mock(Agent.class)));
+        int id = server.registerAgent(agent);
+        Assert.assertEquals(1,id);
+
+        //the agent resolves its effects in priority order whichever way they were registered
+        final StringBuilder order = new StringBuilder();
+        server.registerEffect(new Effect(2) {
+            @Override
+            public void run() {
+                order.append("c");
+            }
+        }, id);
+        server.registerEffect(new Effect(0) {
+            @Override
+            public void run() {
+                order.append("a");
+            }
+        }, agent);
+        server.registerEffect(new Effect(1) {
+            @Override
+            public void run() {
+                order.append("b");
+            }
+        }, id);
+        server.completeAnArbitraryPhase(DAY_PHASES.TRADE);
+        Assert.assertEquals("abc",order.toString());
+    }
+
+
+    @Test
+    public void onlyRegisteredAgentsAreStartedAndOnlyOnce() throws Exception {
+        ScheduleServer server = new ScheduleServer();
+        Agent agent = mock(Agent.class);
+        final AtomicInteger effects = new AtomicInteger();
+        server.registerEffect(new Effect(0) {
+            @Override
+            public void run() {
+                effects.incrementAndGet();
+            }
+        }, agent);
+        server.completeADay();
+        Assert.assertEquals(1, effects.get());
+        verify(agent, never()).start(any(Schedule.class));
+
+        int id = server.registerAgent(agent);
+        Assert.assertEquals(id, server.registerAgent(agent));
+        server.completeADay();
+        verify(agent, times(1)).start(server);
+        server.close();
+        verify(agent, times(1)).turnOff();
+    }
+
+
+    @Test
+    public void unregisteredAgentsAreForgottenAfterTheirEffects() throws Exception {
+        ScheduleServer server = new ScheduleServer(4);
+        final AtomicInteger effects = new AtomicInteger();
+        //short-lived agents, each with two effects which must still resolve one after the other
+        for(int day=0; day<3; day++) {
+            for(int i=0; i<1000; i++) {
+                Agent agent = mock(Agent.class);
+                final int[] order = new int[1];
+                for(int priority=0; priority<2; priority++) {
+                    final int expected = priority;
+                    server.registerEffect(new Effect(priority) {
+                        @Override
+                        public void run() {
+                            if(order[0]++ == expected)
+                                effects.incrementAndGet();
+                        }
+                    }, agent);
+                }
+            }
+            server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        }
+        Assert.assertEquals(6000, effects.get());
+        //none of them took an id
+        Assert.assertEquals(0, server.registerAgent(mock(Agent.class)));
+        server.close();
+    }
+
+
+    @Test
+    public void eachAgentResolvesItsEffectsOnce() throws Exception {
+        Schedule server = new ScheduleServer();
+        final int[] resolved = new int[10000];
+        for(int i=0; i<resolved.length; i++) {
+            final int id = server.registerAgent(mock(Agent.class));
+            for(int j=0; j<1+i%3; j++)
+                server.registerEffect(new Effect(j) {
+                    @Override
+                    public void run() {
+                        resolved[id]++;
+                    }
+                }, id);
+        }
+        server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        for(int i=0; i<resolved.length; i++)
+            Assert.assertEquals(1+i%3,resolved[i]);
+    }
+
+
+    @Test
+    public void metricsCountActionsAndEffects() throws Exception {
+        ScheduleServer server = new ScheduleServer();
+        ScheduleMetrics metrics = new ScheduleMetrics();
+        server.addListener(metrics);
+        final int id = server.registerAgent(mock(Agent.class));
+        server.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+            for(int i=0; i<3; i++)
+                server.registerEffect(new Effect(i) {
+                    @Override
+                    public void run() {
+                    }
+                }, id);
+        });
+
+        for(int i=0; i<10; i++)
+            server.completeADay();
+        Assert.assertEquals(10,metrics.getRuns(DAY_PHASES.TRADE));
+        Assert.assertEquals(10,metrics.getActions(DAY_PHASES.TRADE));
+        Assert.assertEquals(0,metrics.getActions(DAY_PHASES.PRODUCTION));
+        Assert.assertEquals(30,metrics.getEffects(DAY_PHASES.TRADE));
+        Assert.assertEquals(10,metrics.getAgentsWithEffects(DAY_PHASES.TRADE));
+        Assert.assertTrue(metrics.getLastDayNanos() > 0);
+    }
+
+
+    @Test
+    public void completeManyDaysWithCheckpoints() throws Exception {
+        ScheduleServer server = new ScheduleServer();
+        final int[] productions = new int[1];
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, () -> productions[0]++);
+
+        final List<Integer> checkpoints = new LinkedList<>();
+        server.completeDays(25, 10, checkpoints::add);
+        Assert.assertEquals(25,server.getDay());
+        Assert.assertEquals(25,productions[0]);
+        Assert.assertEquals(Arrays.asList(10,20,25),checkpoints);
+
+        server.completeDays(5);
+        Assert.assertEquals(30,server.getDay());
+        Assert.assertEquals(30,productions[0]);
+    }
+
+
+    @Test
+    public void failuresGoThroughTheFuture() throws Exception {
+        Schedule server = new ScheduleServer();
+        final boolean[] fail = {true};
+        server.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+            if(fail[0])
+                throw new IllegalStateException("boom");
+        });
+
+        CompletableFuture<Integer> day = server.completeADayAsync();
+        try {
+            day.get();
+            Assert.fail("the action failure should have reached the future");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        //the schedule survives and keeps going
+        fail[0] = false;
+        Assert.assertEquals(1,server.completeADayAsync().get().intValue());
+        server.completeAnArbitraryPhaseAsync(DAY_PHASES.PRODUCTION).get();
+        Assert.assertEquals(3,server.completeDaysAsync(2).get().intValue());
+    }
+
+
+    @Test
+    public void agentsAreStartedAndTurnedOffOnASharedPool() throws Exception {
+        ForkJoinPool shared = new ForkJoinPool(4);
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger turnedOff = new AtomicInteger();
+        for(int i=0; i<50; i++) {
+            ScheduleServer server = new ScheduleServer(shared);
+            final int[] productions = new int[1];
+            for(int j=0; j<100; j++)
+                server.registerAgent(new Agent() {
+                    @Override
+                    public void start(Schedule schedule) {
+                        started.incrementAndGet();
+                        schedule.registerRecurringAction(DAY_PHASES.PRODUCTION, () -> {
+                            synchronized (productions) {
+                                productions[0]++;
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void turnOff() {
+                        turnedOff.incrementAndGet();
+                    }
+                });
+            server.completeDays(3);
+            Assert.assertEquals(300,productions[0]);
+            server.close();
+            Assert.assertTrue(server.isClosed());
+            try {
+                server.completeADay();
+                Assert.fail("a closed schedule shouldn't run");
+            }
+            catch (IllegalStateException e) {
+                //expected
+            }
+        }
+        Assert.assertEquals(5000,started.get());
+        Assert.assertEquals(5000,turnedOff.get());
+        //the shared pool is still up
+        Assert.assertFalse(shared.isShutdown());
+        shared.shutdown();
+    }
+
+
+    @Test
+    public void transfersMoveGoodsBetweenInventories() throws Exception {
+        Schedule server = new ScheduleServer();
+        final Inventory[] inventories = new Inventory[5000];
+        for(int i=0; i<inventories.length; i++) {
+            inventories[i] = new Inventory();
+            inventories[i].receiveOrProduce(GoodType.OUTPUT, 10);
+            server.registerAgent(mock(Agent.class), inventories[i]);
+        }
+        //every day each agent gives one unit to its neighbour and i%3 units to agent 0, all from parallel actions
+        for(int i=0; i<inventories.length; i++) {
+            final int sender = i;
+            server.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+                server.transfer(sender, (sender + 1) % inventories.length, GoodType.OUTPUT, 1);
+                server.transfer(sender, 0, GoodType.OUTPUT, sender % 3);
+            });
+        }
+        server.completeDays(2);
+
+        float total = 0;
+        for(Inventory inventory : inventories)
+            total += inventory.hasHowMany(GoodType.OUTPUT);
+        Assert.assertEquals(10 * inventories.length, total, .0001f);
+        Assert.assertEquals(10, inventories[3].hasHowMany(GoodType.OUTPUT), .0001f);
+        Assert.assertEquals(8, inventories[4].hasHowMany(GoodType.OUTPUT), .0001f);
+
+        //agents without an inventory can't be part of a transfer
+        int nobody = server.registerAgent(mock(Agent.class));
+        server.transfer(nobody, 0, GoodType.OUTPUT, 1);
+        try {
+            server.completeAnArbitraryPhaseAsync(DAY_PHASES.TRADE).get();
+            Assert.fail("the transfer should have failed");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+
+    @Test
+    public void inventoryEffectsRunInPriorityOrderWithTheOthers() throws Exception {
+        Schedule server = new ScheduleServer();
+        final Inventory inventory = new Inventory();
+        inventory.receiveOrProduce(GoodType.INPUT, 7);
+        final int id = server.registerAgent(mock(Agent.class), inventory);
+        final float[] seen = new float[1];
+        server.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+            server.registerInventoryEffect(id, InventoryOp.CONSUME, GoodType.OUTPUT, 2, 2);
+            server.registerEffect(new Effect(1) {
+                @Override
+                public void run() {
+                    seen[0] = inventory.hasHowMany(GoodType.OUTPUT);
+                }
+            }, id);
+            server.registerInventoryEffect(id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.OUTPUT, 5, 0);
+        });
+        //from outside the pool
+        server.registerInventoryEffect(id, InventoryOp.RESET_TO_0, GoodType.INPUT, 0, 0);
+
+        server.completeAnArbitraryPhase(DAY_PHASES.TRADE);
+        Assert.assertEquals(5, seen[0], .0001f);
+        Assert.assertEquals(3, inventory.hasHowMany(GoodType.OUTPUT), .0001f);
+        Assert.assertEquals(0, inventory.hasHowMany(GoodType.INPUT), .0001f);
+    }
+
+
+    @Test
+    public void inventoryDeltasAreCoalesced() throws Exception {
+        ScheduleServer server = new ScheduleServer();
+        ScheduleMetrics metrics = new ScheduleMetrics();
+        server.addListener(metrics);
+        final Inventory inventory = new Inventory();
+        final int id = server.registerAgent(mock(Agent.class), inventory);
+        for(int thread=0; thread<4; thread++)
+            server.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+                for(int i=0; i<100; i++) {
+                    server.registerInventoryEffect(id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.CASH, 2, 0);
+                    server.registerInventoryEffect(id, InventoryOp.CONSUME, GoodType.CASH, 1, 0);
+                    server.registerInventoryEffect(id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.OUTPUT, 1, 1);
+                }
+            });
+
+        server.completeAnArbitraryPhase(DAY_PHASES.TRADE);
+        Assert.assertEquals(400, inventory.hasHowMany(GoodType.CASH), .0001f);
+        Assert.assertEquals(400, inventory.hasHowMany(GoodType.OUTPUT), .0001f);
+        //one net change per good and priority
+        Assert.assertEquals(2, metrics.getEffects(DAY_PHASES.TRADE));
+
+        //with stable ordering an effect in between keeps the deltas apart
+        server.setStableEffectOrdering(true);
+        final float[] seen = new float[1];
+        server.registerInventoryEffect(id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.CASH, 1, 0);
+        server.registerEffect(new Effect(0) {
+            @Override
+            public void run() {
+                seen[0] = inventory.hasHowMany(GoodType.CASH);
+            }
+        }, id);
+        server.registerInventoryEffect(id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.CASH, 1, 0);
+        server.completeAnArbitraryPhase(DAY_PHASES.POST_TRADE);
+        Assert.assertEquals(401, seen[0], .0001f);
+        Assert.assertEquals(402, inventory.hasHowMany(GoodType.CASH), .0001f);
+        Assert.assertEquals(3, metrics.getEffects(DAY_PHASES.POST_TRADE));
+    }
+
+
+    private enum ModelPhases implements Phase {
+
+        GROW,
+
+        HARVEST,
+
+        IDLE,
+
+        SELL
+    }
+
+    @Test
+    public void customPhasesRunInTheirOrder() throws Exception {
+        ScheduleServer server = new ScheduleServer(2, ModelPhases.SELL, ModelPhases.IDLE, ModelPhases.GROW,
+                ModelPhases.HARVEST);
+        ScheduleMetrics metrics = new ScheduleMetrics();
+        server.addListener(metrics);
+        final StringBuilder log = new StringBuilder();
+        server.registerRecurringAction(ModelPhases.GROW, () -> log.append('g'));
+        server.registerRecurringAction(ModelPhases.HARVEST, () -> log.append('h'));
+        server.registerRecurringAction(ModelPhases.SELL, () -> log.append('s'));
+
+        server.completeDays(2);
+        Assert.assertEquals("sghsgh", log.toString());
+        Assert.assertEquals(2, metrics.getRuns(ModelPhases.IDLE));
+        Assert.assertEquals(0, metrics.getActions(ModelPhases.IDLE));
+        Assert.assertEquals(Arrays.<Phase>asList(ModelPhases.SELL, ModelPhases.IDLE, ModelPhases.GROW,
+                ModelPhases.HARVEST), server.getPhases());
+
+        try {
+            server.registerRecurringAction(DAY_PHASES.TRADE, () -> log.append('t'));
+            Assert.fail("TRADE is not a phase of this schedule");
+        }
+        catch (IllegalArgumentException e) {
+            //expected
+        }
+        server.close();
+    }
+
+
+    @Test
+    public void actionsWaitForTheirDependencies() throws Exception {
+        Schedule server = new ScheduleServer(4);
+        final AtomicInteger produced = new AtomicInteger();
+        final AtomicInteger priced = new AtomicInteger();
+        final int[] seenByPricing = new int[50];
+        final int[] seenBySales = new int[1];
+        //registered before what they wait for
+        for(int i=0; i<seenByPricing.length; i++) {
+            final int pricer = i;
+            server.registerRecurringAction(DAY_PHASES.PRODUCTION, "pricing", () -> {
+                seenByPricing[pricer] = produced.get();
+                priced.incrementAndGet();
+            }, "production");
+        }
+        RecurringAction sales = () -> seenBySales[0] = priced.get();
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, "sales", sales, "pricing", "nobody");
+        final int[] afterSales = new int[1];
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, () -> afterSales[0] = seenBySales[0], sales);
+        for(int i=0; i<100; i++)
+            server.registerRecurringAction(DAY_PHASES.PRODUCTION, "production", produced::incrementAndGet);
+
+        server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        for(int seen : seenByPricing)
+            Assert.assertEquals(100, seen);
+        Assert.assertEquals(50, seenBySales[0]);
+        Assert.assertEquals(50, afterSales[0]);
+
+        //a circle can't run
+        server.registerRecurringAction(DAY_PHASES.TRADE, "a", () -> {}, "b");
+        server.registerRecurringAction(DAY_PHASES.TRADE, "b", () -> {}, "a");
+        try {
+            server.completeAnArbitraryPhase(DAY_PHASES.TRADE);
+            Assert.fail("the circle should have been found");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+    }
+
+
+    @Test
+    public void anActionWaitingForAnUnknownActionIsRejectedAtTheNextBarrier() throws Exception {
+        ScheduleServer server = new ScheduleServer(2);
+        final AtomicInteger ran = new AtomicInteger();
+        RecurringAction first = ran::incrementAndGet;
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, first);
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, ran::incrementAndGet, first);
+        server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        Assert.assertEquals(2, ran.get());
+
+        //never registered itself
+        RecurringAction missing = ran::incrementAndGet;
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, ran::incrementAndGet, missing);
+        try {
+            //a phase that has nothing to do with it still finds out
+            server.completeAnArbitraryPhase(DAY_PHASES.TRADE);
+            Assert.fail("the action waits for an action that isn't in the phase");
+        }
+        catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("PRODUCTION"));
+        }
+
+        //dropped: the phase runs as it did before
+        server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        Assert.assertEquals(4, ran.get());
+        server.close();
+    }
+
+    @Test
+    public void anActionRegisteredTwiceInAGraphIsRejected() throws Exception {
+        ScheduleServer server = new ScheduleServer(2);
+        final AtomicInteger ran = new AtomicInteger();
+        RecurringAction twice = ran::incrementAndGet;
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, "first", twice);
+        server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        Assert.assertEquals(1, ran.get());
+
+        //waiting for it would be ambiguous
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, "second", twice);
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, ran::incrementAndGet, twice);
+        try {
+            server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+            Assert.fail("the action is in the phase twice");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+
+        //both dropped
+        server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+        Assert.assertEquals(2, ran.get());
+        server.close();
+    }
+
+    @Test
+    public void actionsDependingOnAFailureAreSkipped() throws Exception {
+        Schedule server = new ScheduleServer(2);
+        final AtomicInteger ran = new AtomicInteger();
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, "broken", () -> {
+            throw new ArithmeticException("boom");
+        });
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, "downstream", ran::incrementAndGet, "broken");
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, "further", ran::incrementAndGet, "downstream");
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, "independent", () -> ran.addAndGet(10));
+        try {
+            server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+            Assert.fail("the failure should have been rethrown");
+        }
+        catch (ArithmeticException e) {
+            //expected
+        }
+        Assert.assertEquals(10, ran.get());
+    }
+
+
+    @Test
+    public void effectsOfOtherAgentsResolveWhenOneFails() throws Exception {
+        Schedule server = new ScheduleServer(4);
+        final int agents = 4000;
+        final int[] ids = new int[agents];
+        for(int i=0; i<agents; i++)
+            ids[i] = server.registerAgent(mock(Agent.class));
+        for(int failing : new int[]{0, agents / 2, agents - 1}) {
+            final AtomicInteger resolved = new AtomicInteger();
+            for(int i=0; i<agents; i++) {
+                final boolean broken = i == failing;
+                server.registerEffect(new Effect(0) {
+                    @Override
+                    public void run() {
+                        if(broken)
+                            throw new ArithmeticException("boom");
+                        //some work, so that the other halves are still going when the failure happens
+                        double sum = 0;
+                        for(int j=0; j<1000; j++)
+                            sum += Math.sqrt(j);
+                        if(sum > 0)
+                            resolved.incrementAndGet();
+                    }
+                }, ids[i]);
+            }
+            try {
+                server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+                Assert.fail("the failure should have been rethrown");
+            }
+            catch (ArithmeticException e) {
+                //expected
+            }
+            Assert.assertEquals(agents - 1, resolved.get());
+            //and nothing resolves twice or late
+            server.completeAnArbitraryPhase(DAY_PHASES.PRODUCTION);
+            Assert.assertEquals(agents - 1, resolved.get());
+        }
+    }
+
+
+    @Test
+    public void aFailedDayResumesAfterTheFailedPhase() throws Exception {
+        Schedule server = new ScheduleServer(2);
+        final AtomicInteger produced = new AtomicInteger();
+        final AtomicInteger traded = new AtomicInteger();
+        final boolean[] fail = new boolean[]{true};
+        server.registerRecurringAction(DAY_PHASES.PRODUCTION, produced::incrementAndGet);
+        server.registerRecurringAction(DAY_PHASES.PLACE_ORDERS, () -> {
+            if(fail[0]) {
+                fail[0] = false;
+                throw new ArithmeticException("boom");
+            }
+        });
+        server.registerRecurringAction(DAY_PHASES.TRADE, traded::incrementAndGet);
+        try {
+            server.completeADay();
+            Assert.fail("the failure should have been rethrown");
+        }
+        catch (ArithmeticException e) {
+            //expected
+        }
+        Assert.assertEquals(0, server.getDay());
+        Assert.assertEquals(0, traded.get());
+        server.completeADay();
+        Assert.assertEquals(1, server.getDay());
+        Assert.assertEquals(1, produced.get());
+        Assert.assertEquals(1, traded.get());
+        server.completeADay();
+        Assert.assertEquals(2, produced.get());
+        Assert.assertEquals(2, traded.get());
+    }
+
+
+    @Test
+    public void pipelinedAgentsSeeTheirOwnEffectsRightAway() throws Exception {
+        for(boolean pipelined : new boolean[]{false, true}) {
+            ScheduleServer server = new ScheduleServer(4);
+            server.setPipelined(pipelined);
+            final int agents = 1000;
+            final Inventory[] inventories = new Inventory[agents];
+            final float[] seen = new float[agents];
+            for(int i=0; i<agents; i++) {
+                inventories[i] = new Inventory();
+                server.registerAgent(mock(Agent.class), inventories[i]);
+            }
+            for(int i=0; i<agents; i++) {
+                final int id = i;
+                server.registerAgentAction(DAY_PHASES.PRODUCTION, id, () -> {
+                    server.registerInventoryEffect(id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.OUTPUT, 1, 0);
+                    server.registerInventoryEffect((id + 1) % agents, InventoryOp.RECEIVE_OR_PRODUCE,
+                            GoodType.OUTPUT, 10, 0);
+                });
+                server.registerAgentAction(DAY_PHASES.PLACE_ORDERS, id,
+                        () -> seen[id] = inventories[id].hasHowMany(GoodType.OUTPUT));
+            }
+            final float[] traded = new float[1];
+            server.registerRecurringAction(DAY_PHASES.TRADE,
+                    () -> traded[0] = inventories[7].hasHowMany(GoodType.OUTPUT));
+
+            server.completeADay();
+            for(int i=0; i<agents; i++)
+                //pipelined, the effect from the neighbour waits for the end of the run
+                Assert.assertEquals(pipelined ? 1 : 11, seen[i], .0001f);
+            //but everything is in place by the synchronizing phase
+            Assert.assertEquals(11, traded[0], .0001f);
+            server.close();
+        }
+    }
+
+
+    @Test
+    public void snapshotsAreTakenEveryPhaseEvenWhenPipelined() throws Exception {
+        final int agents = 1000;
+        final float[][] seen = new float[2][agents];
+        for(int mode=0; mode<2; mode++) {
+            ScheduleServer server = new ScheduleServer(4);
+            server.setPipelined(mode == 1);
+            final ConcurrentInventory[] inventories = new ConcurrentInventory[agents];
+            for(int i=0; i<agents; i++) {
+                inventories[i] = new ConcurrentInventory(ConcurrentInventory.ReadMode.SNAPSHOT);
+                server.registerAgent(mock(Agent.class), inventories[i]);
+            }
+            final float[] seenNow = seen[mode];
+            for(int i=0; i<agents; i++) {
+                final int id = i;
+                server.registerAgentAction(DAY_PHASES.PRODUCTION, id,
+                        () -> inventories[id].receiveOrProduce(GoodType.OUTPUT, 1));
+                //the neighbour as of the start of the phase
+                server.registerAgentAction(DAY_PHASES.PLACE_ORDERS, id,
+                        () -> seenNow[id] = inventories[(id + 1) % agents].hasHowMany(GoodType.OUTPUT));
+            }
+            server.completeDays(2);
+            server.close();
+        }
+        for(int i=0; i<agents; i++)
+            Assert.assertEquals(2, seen[0][i], .0001f);
+        Assert.assertArrayEquals(seen[0], seen[1], .0001f);
+    }
+
+    @Test
+    public void agentActionsOfOtherAgentsRunWhenOneFails() throws Exception {
+        for(boolean pipelined : new boolean[]{false, true}) {
+            ScheduleServer server = new ScheduleServer(4);
+            server.setPipelined(pipelined);
+            final int agents = 5000;
+            final AtomicInteger ran = new AtomicInteger();
+            for(int i=0; i<agents; i++) {
+                final int id = server.registerAgent(mock(Agent.class), new Inventory());
+                server.registerAgentAction(DAY_PHASES.PRODUCTION, id, () -> {
+                    if(id == agents / 2)
+                        throw new ArithmeticException("boom");
+                    ran.incrementAndGet();
+                });
+                server.registerAgentAction(DAY_PHASES.PLACE_ORDERS, id, ran::incrementAndGet);
+            }
+            try {
+                server.completeADay();
+                Assert.fail("the failure should have been rethrown");
+            }
+            catch (ArithmeticException e) {
+                //expected
+            }
+            //pipelined, the failing agent skips the rest of its run; otherwise the next phase never started
+            Assert.assertEquals(pipelined ? 2 * (agents - 1) : agents - 1, ran.get());
+            server.close();
+        }
+    }
+
+
+    @Test
+    public void buffersOfDeadWorkersAreOrphaned() throws Exception {
+        final RegistrationBuffer[] buffer = new RegistrationBuffer[1];
+        Thread worker = new Thread(() -> buffer[0] = new RegistrationBuffer());
+        worker.start();
+        worker.join();
+        //the schedule drops these after draining them
+        Assert.assertTrue(buffer[0].isOrphaned());
+        Assert.assertFalse(new RegistrationBuffer().isOrphaned());
+    }
+
+    @Test
+    public void restoreFromACheckpoint() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("run.checkpoint");
+        ScheduleServer original = new ScheduleServer(4);
+        final Inventory[] inventories = new Inventory[500];
+        for(int i=0; i<inventories.length; i++) {
+            inventories[i] = new Inventory();
+            final int id = original.registerAgent(mock(Agent.class), inventories[i]);
+            original.registerAgentAction(DAY_PHASES.PRODUCTION, id, () -> original.registerInventoryEffect(
+                    id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.OUTPUT, id, 0));
+        }
+        //one without inventory
+        original.registerAgent(mock(Agent.class));
+        original.setCheckpoints(file, 5);
+        original.completeDays(12);
+        original.close();
+
+        ScheduleServer restored = new ScheduleServer(4);
+        final Inventory[] reloaded = new Inventory[inventories.length];
+        for(int i=0; i<reloaded.length; i++) {
+            reloaded[i] = new Inventory();
+            reloaded[i].receiveOrProduce(GoodType.CASH, 1);
+            restored.registerAgent(mock(Agent.class), reloaded[i]);
+        }
+        restored.registerAgent(mock(Agent.class));
+        restored.restore(file);
+        Assert.assertEquals(10, restored.getDay());
+        for(int i=0; i<reloaded.length; i++) {
+            Assert.assertEquals(10 * i, reloaded[i].hasHowMany(GoodType.OUTPUT), .0001f);
+            Assert.assertEquals(0, reloaded[i].hasHowMany(GoodType.CASH), .0001f);
+        }
+
+        //on demand
+        restored.setCheckpoints(file, 0);
+        restored.completeDays(3);
+        restored.checkpoint().get();
+        CheckpointFile checkpoint = CheckpointFile.read(file);
+        Assert.assertEquals(13, checkpoint.getDay());
+        Assert.assertEquals(501, checkpoint.getAgents());
+        Assert.assertFalse(checkpoint.hasInventory(500));
+        Assert.assertEquals(70, checkpoint.get(7, GoodType.OUTPUT), .0001f);
+        restored.close();
+    }
+
+
+    @Test
+    public void aCheckpointThatCantBeWrittenFailsTheDaysThatTookIt() throws Exception {
+        //the folder doesn't exist
+        Path file = folder.getRoot().toPath().resolve("missing").resolve("run.checkpoint");
+        ScheduleServer server = new ScheduleServer(4);
+        server.registerAgent(mock(Agent.class), new Inventory());
+        server.setCheckpoints(file, 1);
+        try {
+            server.completeDays(3);
+            Assert.fail("the checkpoint can't be written");
+        }
+        catch (UncheckedIOException e) {
+            Assert.assertEquals("couldn't write the checkpoint of day 1", e.getMessage());
+        }
+        Assert.assertTrue(server.getDay() >= 1);
+
+        //the failed write is not blamed on the days that come after
+        server.setCheckpoints(file, 0);
+        Assert.assertEquals(server.getDay() + 2, (int) server.completeDaysAsync(2).get());
+        server.close();
+    }
+
+    @Test
+    public void aCheckpointThatDoesntFitRestoresNothing() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("run.checkpoint");
+        ScheduleServer original = new ScheduleServer(4);
+        for(int i=0; i<3; i++) {
+            Inventory inventory = new Inventory();
+            inventory.receiveOrProduce(GoodType.OUTPUT, 5);
+            original.registerAgent(mock(Agent.class), inventory);
+        }
+        original.setCheckpoints(file, 0);
+        original.completeDays(2);
+        original.checkpoint().get();
+        original.close();
+
+        ScheduleServer restored = new ScheduleServer(4);
+        Inventory first = new Inventory();
+        Inventory second = new Inventory();
+        restored.registerAgent(mock(Agent.class), first);
+        restored.registerAgent(mock(Agent.class), second);
+        //the last agent comes back without an inventory
+        restored.registerAgent(mock(Agent.class));
+        try {
+            restored.restore(file);
+            Assert.fail("the last agent has nowhere to restore to");
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("agent 2 has no inventory to restore", e.getMessage());
+        }
+        Assert.assertEquals(0, restored.getDay());
+        Assert.assertEquals(0, first.hasHowMany(GoodType.OUTPUT), .0001f);
+        Assert.assertEquals(0, second.hasHowMany(GoodType.OUTPUT), .0001f);
+        restored.close();
+    }
+
+    @Test
+    public void replayTheJournal() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("run.journal");
+        ScheduleServer server = new ScheduleServer(4);
+        final Inventory[] inventories = new Inventory[300];
+        for(int i=0; i<inventories.length; i++) {
+            inventories[i] = new Inventory();
+            final int id = server.registerAgent(mock(Agent.class), inventories[i]);
+            server.registerAgentAction(DAY_PHASES.PRODUCTION, id, () -> {
+                server.registerInventoryEffect(id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.OUTPUT, id * .1f, 0);
+                server.registerInventoryEffect(id, InventoryOp.RESET_TO_0, GoodType.INPUT, 0, 1);
+            });
+            server.registerAgentAction(DAY_PHASES.POST_TRADE, id, () -> server.registerInventoryEffect(
+                    id, InventoryOp.CONSUME, GoodType.OUTPUT, inventories[id].hasHowMany(GoodType.OUTPUT) / 3, 0));
+        }
+        server.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+            for(int i=0; i<inventories.length; i++)
+                server.transfer(i, (i + 1) % inventories.length, GoodType.OUTPUT,
+                                inventories[i].hasHowMany(GoodType.OUTPUT) / 2);
+        });
+        server.setJournal(file);
+        server.completeDays(4);
+        float[] atDay4 = new float[inventories.length];
+        for(int i=0; i<inventories.length; i++)
+            atDay4[i] = inventories[i].hasHowMany(GoodType.OUTPUT);
+        server.completeDays(3);
+        server.close();
+
+        Inventory[] replayed = new Inventory[inventories.length];
+        for(int i=0; i<replayed.length; i++)
+            replayed[i] = new Inventory();
+        Assert.assertEquals(4 * 300 * 4, JournalReplay.replay(file, 4, replayed));
+        for(int i=0; i<replayed.length; i++)
+            Assert.assertEquals(atDay4[i], replayed[i].hasHowMany(GoodType.OUTPUT), 0);
+
+        for(int i=0; i<replayed.length; i++)
+            replayed[i] = new Inventory();
+        JournalReplay.replay(file, Integer.MAX_VALUE, replayed);
+        for(int i=0; i<replayed.length; i++)
+            Assert.assertEquals(inventories[i].hasHowMany(GoodType.OUTPUT),
+                                replayed[i].hasHowMany(GoodType.OUTPUT), 0);
+    }
+
+
+    @Test
+    public void aggregatesOverAllInventories() throws Exception {
+        ScheduleServer server = new ScheduleServer(4);
+        for(int i=0; i<10000; i++) {
+            final Inventory inventory = new Inventory();
+            inventory.receiveOrProduce(GoodType.CASH, i);
+            final int id = server.registerAgent(mock(Agent.class), inventory);
+            server.registerAgentAction(DAY_PHASES.PRODUCTION, id, () -> server.registerInventoryEffect(
+                    id, InventoryOp.RECEIVE_OR_PRODUCE, GoodType.OUTPUT, id % 10, 0));
+        }
+        InventoryAggregates cash = server.aggregate(GoodType.CASH, 0, 10000, 10);
+        Assert.assertEquals(10000, cash.getCount());
+        Assert.assertEquals(49995000, cash.getSum(), .001);
+        Assert.assertEquals(4999.5, cash.getMean(), .0001);
+        Assert.assertEquals((10000d * 10000 - 1) / 12, cash.getVariance(), .01);
+        Assert.assertEquals(0, cash.getMin(), 0);
+        Assert.assertEquals(9999, cash.getMax(), 0);
+        Assert.assertArrayEquals(new long[]{1000, 1000, 1000, 1000, 1000, 1000, 1000, 1000, 1000, 1000},
+                                 cash.getHistogram());
+
+        //from within an action
+        final InventoryAggregates[] seen = new InventoryAggregates[1];
+        server.registerRecurringAction(DAY_PHASES.DATA_AND_OUTPUT,
+                                       () -> seen[0] = server.aggregate(GoodType.OUTPUT));
+        server.setTrackingTotals(true);
+        server.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+            for(int i=0; i<100; i++)
+                server.transfer(i, i + 1, GoodType.OUTPUT, 1);
+        });
+        server.completeDays(3);
+        Assert.assertEquals(3 * 45000, seen[0].getSum(), .001);
+        Assert.assertEquals(27, seen[0].getMax(), 0);
+
+        InventoryAggregates tracked = server.tracked(GoodType.OUTPUT);
+        InventoryAggregates full = server.aggregate(GoodType.OUTPUT);
+        Assert.assertEquals(full.getSum(), tracked.getSum(), .01);
+        Assert.assertEquals(full.getMean(), tracked.getMean(), .0001);
+        Assert.assertEquals(full.getVariance(), tracked.getVariance(), .01);
+        Assert.assertEquals(cash.getSum(), server.tracked(GoodType.CASH).getSum(), .001);
+        server.close();
+    }
+
+
+    @Test
+    public void outputIsStreamedToDisk() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("output.csv.gz");
+        ScheduleServer server = new ScheduleServer(4);
+        StreamingOutput output = new StreamingOutput(server, DAY_PHASES.DATA_AND_OUTPUT, file, true);
+        for(int i=0; i<300; i++) {
+            final Inventory inventory = new Inventory();
+            inventory.receiveOrProduce(GoodType.CASH, i);
+            final int id = server.registerAgent(mock(Agent.class), inventory);
+            server.registerAgentAction(DAY_PHASES.DATA_AND_OUTPUT, id,
+                    () -> output.append(server.getDay(), id, inventory));
+        }
+        server.completeDays(4);
+        output.close();
+        server.close();
+        Assert.assertEquals(1200, output.getRowsWritten());
+
+        List<String> lines = new LinkedList<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file))))) {
+            String line;
+            while((line = reader.readLine()) != null)
+                lines.add(line);
+        }
+        Assert.assertEquals(1201, lines.size());
+        Assert.assertEquals("day,agent,OUTPUT,INPUT,CASH,PEOPLE", lines.get(0));
+        Assert.assertTrue(lines.contains("3,42,0.0,0.0,42.0,0.0"));
+    }
+
+
     @Test
     public void canRunA1000Days() throws Exception {
         Schedule server = new ScheduleServer();
@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import io.github.carrknight.schedule.Agent;
+import io.github.carrknight.schedule.DAY_PHASES;
+import io.github.carrknight.schedule.ScheduleServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+
+public class ConcurrentInventoryTest {
+
+
+    @Test
+    public void manyActionsPayTheSameInventory() throws Exception {
+
+        ScheduleServer schedule = new ScheduleServer(4);
+        ConcurrentInventory bank = new ConcurrentInventory(ConcurrentInventory.ReadMode.SNAPSHOT);
+        schedule.registerAgent(mock(Agent.class), bank);
+        final float[] seen = new float[1000];
+        for(int i=0; i<seen.length; i++) {
+            final int payer = i;
+            schedule.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+                //whatever the others paid already, the snapshot is the same for everybody
+                seen[payer] = bank.hasHowMany(GoodType.CASH);
+                bank.receiveOrProduce(GoodType.CASH, 2);
+                bank.consume(GoodType.CASH, 1);
+            });
+        }
+
+        schedule.completeAnArbitraryPhase(DAY_PHASES.TRADE);
+        Assert.assertEquals(1000,bank.current(GoodType.CASH),.0001);
+        for(float value : seen)
+            Assert.assertEquals(0,value,.0001);
+        //the snapshot moves forward only at the next phase
+        Assert.assertEquals(0,bank.hasHowMany(GoodType.CASH),.0001);
+        schedule.completeAnArbitraryPhase(DAY_PHASES.TRADE);
+        for(float value : seen)
+            Assert.assertEquals(1000,value,.0001);
+        Assert.assertEquals(2000,bank.current(GoodType.CASH),.0001);
+        schedule.close();
+    }
+
+    @Test
+    public void relaxedReadsSeeTheLatestValue() throws Exception {
+
+        ConcurrentInventory inventory = new ConcurrentInventory();
+        inventory.consume(GoodType.CASH,100.5f);
+        inventory.receiveOrProduce(GoodType.CASH, 10);
+        Assert.assertEquals(-90.5,inventory.hasHowMany(GoodType.CASH),.0001);
+        Assert.assertEquals(0,inventory.snapshotted(GoodType.CASH),.0001);
+        inventory.snapshot();
+        inventory.resetTo0(GoodType.CASH);
+        Assert.assertEquals(0,inventory.hasHowMany(GoodType.CASH),.0001);
+        Assert.assertEquals(-90.5,inventory.snapshotted(GoodType.CASH),.0001);
+
+    }
+}
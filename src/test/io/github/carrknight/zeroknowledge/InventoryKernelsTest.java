@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+public class InventoryKernelsTest {
+
+
+    @Test
+    public void kernelsChangeEveryRow() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for(InventoryStore store : new InventoryStore[]{InventoryStore.onHeap(1),InventoryStore.offHeap(1)}) {
+            //more rows than a leaf, so the kernels split
+            for (int i = 0; i < 20000; i++) {
+                int row = store.addInventory();
+                store.receiveOrProduce(row, GoodType.INPUT, i % 10);
+                store.receiveOrProduce(row, GoodType.CASH, 100);
+                store.receiveOrProduce(row, GoodType.PEOPLE, 1);
+            }
+
+            //2 input per unit, at most 3 units
+            double units = InventoryKernels.produce(pool, store, GoodType.INPUT, 2, GoodType.OUTPUT, 1, 3);
+            Assert.assertEquals(2000 * (0 + .5 + 1 + 1.5 + 2 + 2.5 + 3 + 3 + 3 + 3), units, .001);
+            Assert.assertEquals(3, store.hasHowMany(9, GoodType.INPUT), .0001);
+            Assert.assertEquals(3, store.hasHowMany(9, GoodType.OUTPUT), .0001);
+            Assert.assertEquals(0, store.hasHowMany(5, GoodType.INPUT), .0001);
+            Assert.assertEquals(2.5, store.hasHowMany(5, GoodType.OUTPUT), .0001);
+
+            Assert.assertEquals(20000 * 10, InventoryKernels.tax(pool, store, GoodType.CASH, .1f), .01);
+            Assert.assertEquals(90, store.hasHowMany(123, GoodType.CASH), .0001);
+            Assert.assertEquals(9 * 3, InventoryKernels.tax(pool, store, GoodType.CASH, .1f, new int[]{1, 2, 3}), .01);
+            Assert.assertEquals(81, store.hasHowMany(2, GoodType.CASH), .0001);
+
+            InventoryKernels.resetTo0(pool, store, GoodType.PEOPLE, new int[]{7});
+            Assert.assertEquals(0, store.hasHowMany(7, GoodType.PEOPLE), .0001);
+            Assert.assertEquals(1, store.hasHowMany(8, GoodType.PEOPLE), .0001);
+            InventoryKernels.resetTo0(pool, store, GoodType.PEOPLE);
+            Assert.assertEquals(0, store.sum(GoodType.PEOPLE), .0001);
+
+            //the first sender can afford it, the second can't
+            store.resetTo0(10, GoodType.CASH);
+            int moved = InventoryKernels.transferIf(pool, store, GoodType.CASH, new int[]{11, 10}, new int[]{0, 0},
+                                                    50, 0);
+            Assert.assertEquals(1, moved);
+            Assert.assertEquals(90 + 50, store.hasHowMany(0, GoodType.CASH), .0001);
+            Assert.assertEquals(40, store.hasHowMany(11, GoodType.CASH), .0001);
+            Assert.assertEquals(0, store.hasHowMany(10, GoodType.CASH), .0001);
+        }
+        pool.shutdown();
+    }
+
+
+    @Test
+    public void aSenderInManyPairsOnlyPaysWhatItHas() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        InventoryStore store = InventoryStore.onHeap(100000);
+        for (int i = 0; i < 100000; i++)
+            store.receiveOrProduce(store.addInventory(), GoodType.CASH, 100);
+        //every pair from the same few senders, spread so that the rows would be split among threads
+        int[] senders = new int[40000];
+        int[] receivers = new int[40000];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = (i % 4) * 25000;
+            receivers[i] = 1 + i;
+        }
+        int moved = InventoryKernels.transferIf(pool, store, GoodType.CASH, senders, receivers, 30, 0);
+        //each sender affords 3 transfers, the first 3 of its pairs
+        Assert.assertEquals(12, moved);
+        Assert.assertEquals(10, store.hasHowMany(0, GoodType.CASH), .0001);
+        Assert.assertEquals(10, store.hasHowMany(75000, GoodType.CASH), .0001);
+        Assert.assertEquals(130, store.hasHowMany(1, GoodType.CASH), .0001);
+        Assert.assertEquals(130, store.hasHowMany(12, GoodType.CASH), .0001);
+        Assert.assertEquals(100, store.hasHowMany(13, GoodType.CASH), .0001);
+        Assert.assertEquals(100000 * 100, store.sum(GoodType.CASH), .01);
+        pool.shutdown();
+    }
+
+
+    @Test
+    public void aReceiverInManyPairsGetsThemAll() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        InventoryStore store = InventoryStore.offHeap(100000);
+        for (int i = 0; i < 100000; i++)
+            store.receiveOrProduce(store.addInventory(), GoodType.CASH, 100);
+        //more pairs than a leaf, all to the same receiver, which sends too
+        int[] senders = new int[40000];
+        int[] receivers = new int[40000];
+        for (int i = 0; i < senders.length; i++) {
+            senders[i] = 1 + i;
+            receivers[i] = 0;
+        }
+        senders[0] = 0;
+        int moved = InventoryKernels.transferIf(pool, store, GoodType.CASH, senders, receivers, 1, 0);
+        Assert.assertEquals(40000, moved);
+        Assert.assertEquals(100 + 40000 - 1, store.hasHowMany(0, GoodType.CASH), .0001);
+        Assert.assertEquals(99, store.hasHowMany(40000, GoodType.CASH), .0001);
+        Assert.assertEquals(100, store.hasHowMany(40001, GoodType.CASH), .0001);
+        pool.shutdown();
+    }
+
+
+    @Test
+    public void notANumberIsRejected() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        InventoryStore store = InventoryStore.onHeap(1);
+        store.addInventory();
+        int[] one = new int[]{0};
+        for(float[] arguments : new float[][]{{Float.NaN, 1}, {1, Float.NaN}}) {
+            try {
+                InventoryKernels.transferIf(pool, store, GoodType.CASH, one, one, arguments[0], arguments[1]);
+                Assert.fail("transferred with " + arguments[0] + " and " + arguments[1]);
+            }
+            catch (IllegalArgumentException e) {
+            }
+            try {
+                InventoryKernels.produce(pool, store, GoodType.INPUT, arguments[0], GoodType.OUTPUT, 1, arguments[1]);
+                Assert.fail("produced with " + arguments[0] + " and " + arguments[1]);
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
+        pool.shutdown();
+    }
+}
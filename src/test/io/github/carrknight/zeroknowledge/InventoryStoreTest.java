@@ -0,0 +1,56 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InventoryStoreTest {
+
+
+    @Test
+    public void rowsCountLikeInventories() throws Exception {
+        for(InventoryStore store : new InventoryStore[]{InventoryStore.onHeap(1),InventoryStore.offHeap(1)}) {
+            //force the store to grow a few times
+            Owner[] owners = new Owner[100];
+            for (int i = 0; i < owners.length; i++)
+                owners[i] = store.getInventory(store.addInventory());
+
+            for (int i = 0; i < owners.length; i++) {
+                owners[i].consume(GoodType.CASH, 100.5f);
+                owners[i].receiveOrProduce(GoodType.CASH, 10);
+                owners[i].receiveOrProduce(GoodType.PEOPLE, i);
+            }
+            Assert.assertEquals(-90.5, owners[42].hasHowMany(GoodType.CASH), .0001);
+            Assert.assertEquals(42, owners[42].hasHowMany(GoodType.PEOPLE), .0001);
+            Assert.assertEquals(4950, store.sum(GoodType.PEOPLE), .0001);
+            owners[42].resetTo0(GoodType.PEOPLE);
+            Assert.assertEquals(0, owners[42].hasHowMany(GoodType.PEOPLE), .0001);
+            Assert.assertEquals(0, store.hasHowMany(42,GoodType.PEOPLE), .0001);
+            Assert.assertEquals(100, store.column(GoodType.CASH).remaining());
+        }
+
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 Ernesto Carrella
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package io.github.carrknight.zeroknowledge;
+
+import io.github.carrknight.schedule.Agent;
+import io.github.carrknight.schedule.DAY_PHASES;
+import io.github.carrknight.schedule.ScheduleServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+
+public class MarketTest {
+
+
+    @Test
+    public void bestOrdersTradeAtTheMidpoint() throws Exception {
+        ScheduleServer server = new ScheduleServer();
+        Market market = new Market(server, GoodType.OUTPUT);
+        Inventory[] inventories = new Inventory[4];
+        int[] ids = new int[4];
+        for(int i=0; i<4; i++) {
+            inventories[i] = new Inventory();
+            ids[i] = server.registerAgent(mock(Agent.class));
+            market.registerTrader(ids[i], inventories[i]);
+        }
+        server.registerRecurringAction(DAY_PHASES.PLACE_ORDERS, () -> {
+            market.placeBid(GoodType.OUTPUT, ids[0], 10, 1); //trades with the ask at 6
+            market.placeBid(GoodType.OUTPUT, ids[1], 5, 1); //too low
+            market.placeAsk(GoodType.OUTPUT, ids[2], 6, 1);
+            market.placeAsk(GoodType.OUTPUT, ids[3], 7, 1); //too high for the second bid
+        });
+
+        server.completeADay();
+        Assert.assertEquals(1, inventories[0].hasHowMany(GoodType.OUTPUT), .0001);
+        Assert.assertEquals(-8, inventories[0].hasHowMany(GoodType.CASH), .0001);
+        Assert.assertEquals(-1, inventories[2].hasHowMany(GoodType.OUTPUT), .0001);
+        Assert.assertEquals(8, inventories[2].hasHowMany(GoodType.CASH), .0001);
+        Assert.assertEquals(0, inventories[1].hasHowMany(GoodType.CASH), .0001);
+        Assert.assertEquals(0, inventories[3].hasHowMany(GoodType.OUTPUT), .0001);
+        Assert.assertEquals(8, market.getLastPrice(GoodType.OUTPUT), .0001);
+        Assert.assertEquals(1, market.getLastVolume(GoodType.OUTPUT), .0001);
+
+        //same again tomorrow: the books start empty every day
+        server.completeADay();
+        Assert.assertEquals(2, inventories[0].hasHowMany(GoodType.OUTPUT), .0001);
+        Assert.assertEquals(-16, inventories[0].hasHowMany(GoodType.CASH), .0001);
+    }
+
+    @Test
+    public void clearsInTheChosenPhase() throws Exception {
+        ScheduleServer server = new ScheduleServer();
+        Market market = new Market(server, DAY_PHASES.POST_TRADE, 0, GoodType.OUTPUT);
+        Inventory buyer = new Inventory();
+        Inventory seller = new Inventory();
+        int buyerId = server.registerAgent(mock(Agent.class));
+        int sellerId = server.registerAgent(mock(Agent.class));
+        market.registerTrader(buyerId, buyer);
+        market.registerTrader(sellerId, seller);
+        server.registerRecurringAction(DAY_PHASES.TRADE, () -> {
+            market.placeBid(GoodType.OUTPUT, buyerId, 10, 1);
+            market.placeAsk(GoodType.OUTPUT, sellerId, 6, 1);
+        });
+
+        server.completeAnArbitraryPhase(DAY_PHASES.TRADE);
+        Assert.assertEquals(0, buyer.hasHowMany(GoodType.OUTPUT), .0001);
+        server.completeAnArbitraryPhase(DAY_PHASES.POST_TRADE);
+        Assert.assertEquals(1, buyer.hasHowMany(GoodType.OUTPUT), .0001);
+        Assert.assertEquals(8, seller.hasHowMany(GoodType.CASH), .0001);
+    }
+
+    @Test
+    public void manyParallelOrdersConserveGoodsAndCash() throws Exception {
+        ScheduleServer server = new ScheduleServer();
+        Market market = new Market(server, GoodType.OUTPUT, GoodType.INPUT);
+        final int traders = 2000;
+        final Inventory[] inventories = new Inventory[traders];
+        for(int i=0; i<traders; i++) {
+            inventories[i] = new Inventory();
+            final int id = server.registerAgent(mock(Agent.class));
+            market.registerTrader(id, inventories[i]);
+            //zero intelligence: random prices, half buyers and half sellers of each good
+            server.registerRecurringAction(DAY_PHASES.PLACE_ORDERS, () -> {
+                for(GoodType good : new GoodType[]{GoodType.OUTPUT, GoodType.INPUT}) {
+                    float price = (float) (Math.random() * 100);
+                    if ((id + good.ordinal()) % 2 == 0)
+                        market.placeBid(good, id, price, 1 + id % 3);
+                    else
+                        market.placeAsk(good, id, price, 1 + id % 5);
+                }
+            });
+        }
+
+        server.completeDays(5);
+        double output = 0;
+        double input = 0;
+        double cash = 0;
+        for(Inventory inventory : inventories) {
+            output += inventory.hasHowMany(GoodType.OUTPUT);
+            input += inventory.hasHowMany(GoodType.INPUT);
+            cash += inventory.hasHowMany(GoodType.CASH);
+        }
+        Assert.assertTrue(market.getLastVolume(GoodType.OUTPUT) > 0);
+        Assert.assertEquals(0, output, .01);
+        Assert.assertEquals(0, input, .01);
+        Assert.assertEquals(0, cash, 1);
+    }
+}